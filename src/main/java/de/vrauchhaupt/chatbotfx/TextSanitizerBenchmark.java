@@ -0,0 +1,125 @@
+package de.vrauchhaupt.chatbotfx;
+
+import de.vrauchhaupt.chatbotfx.helper.TextSanitizer;
+import org.jsoup.Jsoup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Compares the {@link TextSanitizer} with the former Jsoup and regex based cleaning of LLM sentences.
+ * Checks, that the first pass produces the same text as {@code Jsoup.parse(..).text()} and the sanitizer the same as
+ * the former cleaning, then logs the throughput of both. The allocations are best seen with a profiler, e.g. a flight
+ * recording of the benchmark.
+ */
+public class TextSanitizerBenchmark extends AbstractProgram {
+
+    private static final int SENTENCES = 2_000;
+    private static final int WARMUP_ROUNDS = 20;
+    private static final int MEASURED_ROUNDS = 50;
+    private static final String[] FRAGMENTS = {
+            "She smiles at you", " and takes your hand.", " *blushes*", " \"Really?\"", " I can't believe it!",
+            "<br>", "<br/>", " &amp; ", " &quot;Yes&quot;", " &#39;", " café", " ’", " — ", " 😀",
+            " <b>bold</b>", " <i>",  " 3.5 miles", " |", " {", "}", " < 3", "\n", "  ", " e.g. this",
+            "<p>", "</p>", " &nbsp;", " &lt;3", "<div>x</div>", " &copy", "\t", "<pre>", "</pre>", " &#0;"};
+
+    /**
+     * markup, which jsoup does not parse like the rest, checked besides the generated sentences
+     */
+    private static final String[] EDGE_CASES = {
+            "<textarea>a<b>c</textarea>", "x<textarea>a &amp; <b>c</textarea>y", "<textarea>a</textareax>b</textarea>c",
+            "<textarea>a</textarea", "<title>T &amp; <i>x</i></title>body", "<title>a  b</title>", "<title>x<y<span>|",
+            "a<title>t</title>b", "<pre>a   b\n  c</pre>", "x <pre> a  b </pre> y", "<pre><b> a  b</b>\n\n c</pre>z",
+            "<p>x<pre>a  b</pre>y", "<pre>\nfirst</pre>", "<xmp>&amp;  a<b>c</xmp>", "<iframe>a<b>c</iframe>",
+            "<plaintext>a  &amp;<b>c", "a&#0;b", "<b>&#0;</b>x", "<textarea>a\u0000b&#0;</textarea>", "&#128;&#150;"};
+
+    private long blackhole = 0;
+
+    public static void main(String... args) {
+        AbstractProgram.initAndRun(TextSanitizerBenchmark.class);
+    }
+
+    static String legacyClean(String aString) {
+        String returnValue = Jsoup.parse(aString).text();
+        returnValue = returnValue.replaceAll("\r?\n|\r", "");
+        returnValue = returnValue.replaceAll("<[^>]*>", " ");
+        returnValue = returnValue.replaceAll("<[^>]*}", " ");
+        returnValue = returnValue.replaceAll("[^\\x00-\\x7F]", "");
+        returnValue = returnValue.replaceAll("[<>|]", "");
+        returnValue = returnValue.replace("E &#xDBC;&##R; = .'", "");
+        return returnValue;
+    }
+
+    @Override
+    protected void run() {
+        List<String> sentences = createSentences();
+        TextSanitizer textSanitizer = new TextSanitizer();
+
+        int textDifferences = 0;
+        int differences = 0;
+        List<String> checked = new ArrayList<>(sentences);
+        checked.addAll(List.of(EDGE_CASES));
+        for (String sentence : checked) {
+            String expectedText = Jsoup.parse(sentence).text();
+            String actualText = textSanitizer.toText(sentence);
+            if (!expectedText.equals(actualText)) {
+                textDifferences++;
+                log("Different text for '" + sentence + "'\n  jsoup     '" + expectedText + "'\n  sanitizer '" + actualText + "'");
+            }
+            String expected = legacyClean(sentence);
+            String actual = textSanitizer.clean(sentence);
+            if (!expected.equals(actual)) {
+                differences++;
+                log("Difference for '" + sentence + "'\n  legacy    '" + expected + "'\n  sanitizer '" + actual + "'");
+            }
+        }
+        log(textDifferences + " of " + checked.size() + " sentences give a different text than jsoup");
+        log(differences + " of " + checked.size() + " sentences are cleaned differently");
+        if (textDifferences > 0 || differences > 0)
+            throw new IllegalStateException("The TextSanitizer does not clean like Jsoup and the regular expressions");
+
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            runLegacy(sentences);
+            runSanitizer(textSanitizer, sentences);
+        }
+        measure("Jsoup + regex", () -> runLegacy(sentences));
+        measure("TextSanitizer", () -> runSanitizer(textSanitizer, sentences));
+        log("(" + blackhole + ")");
+    }
+
+    private void runLegacy(List<String> sentences) {
+        for (String sentence : sentences)
+            blackhole += legacyClean(sentence).length();
+    }
+
+    private void runSanitizer(TextSanitizer textSanitizer, List<String> sentences) {
+        for (String sentence : sentences)
+            blackhole += textSanitizer.clean(sentence).length();
+    }
+
+    private void measure(String name, Runnable round) {
+        long start = System.nanoTime();
+        for (int i = 0; i < MEASURED_ROUNDS; i++)
+            round.run();
+        long durationNanos = System.nanoTime() - start;
+        long calls = (long) SENTENCES * MEASURED_ROUNDS;
+        log(String.format("%-15s %10.0f sentences/sec. %8.2f µs/sentence",
+                name,
+                calls * 1_000_000_000d / durationNanos,
+                durationNanos / 1000d / calls));
+    }
+
+    private static List<String> createSentences() {
+        Random random = new Random(42);
+        List<String> sentences = new ArrayList<>(SENTENCES);
+        for (int i = 0; i < SENTENCES; i++) {
+            StringBuilder sentence = new StringBuilder();
+            int fragments = 1 + random.nextInt(8);
+            for (int j = 0; j < fragments; j++)
+                sentence.append(FRAGMENTS[random.nextInt(FRAGMENTS.length)]);
+            sentences.add(sentence.toString());
+        }
+        return sentences;
+    }
+}
@@ -0,0 +1,157 @@
+package de.vrauchhaupt.chatbotfx;
+
+import de.vrauchhaupt.chatbotfx.manager.OnnxPiperVoice;
+import de.vrauchhaupt.chatbotfx.manager.PiperManager;
+import de.vrauchhaupt.chatbotfx.manager.PiperWorkerPool;
+import de.vrauchhaupt.chatbotfx.manager.SettingsManager;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+/**
+ * Compares the synthesis of sentences by one piper process per sentence with the {@link PiperWorkerPool} and the
+ * {@link OnnxPiperVoice}. Logs sentences per second of
+ * <ul>
+ *     <li>one piper process per sentence, one after the other, like before the worker pool</li>
+ *     <li>one worker, one sentence after the other</li>
+ *     <li>as many workers as configured in the settings, all sentences at once</li>
+ *     <li>the voice in onnx runtime with as many threads as configured in the settings, all sentences at once</li>
+ * </ul>
+ * The voice model is the first argument, or the first one found in the tts model directory.
+ */
+public class TtsBenchmark extends AbstractProgram {
+
+    private static final int ROUNDS = 3;
+    private static final String[] SENTENCES = {
+            "She smiles at you and takes your hand.",
+            "Really? I can't believe it!",
+            "The rain has stopped, and the streets are shining in the light of the lanterns.",
+            "Come with me, there is something I want to show you.",
+            "He shakes his head slowly.",
+            "We should leave before the sun goes down, the forest is not safe at night.",
+            "Thank you.",
+            "I have been waiting for this moment for a very long time, and now that it is here, I don't know what to say."};
+
+    private static String[] arguments = new String[0];
+    private long blackhole = 0;
+
+    public static void main(String... args) {
+        arguments = args;
+        AbstractProgram.initAndRun(TtsBenchmark.class);
+    }
+
+    @Override
+    protected void run() throws Exception {
+        Path piperExe = PiperManager.getPiperExe();
+        if (piperExe == null)
+            throw new RuntimeException("Piper is not available at '" + SettingsManager.instance().getPathToPiper() + "'");
+        Path ttsModelFiles = SettingsManager.instance().getPathToTtsModelFiles();
+        String ttsModel = arguments.length > 0 ? arguments[0] : findFirstTtsModel(ttsModelFiles);
+        Path model = ttsModelFiles.resolve(ttsModel + ".onnx");
+        Path config = ttsModelFiles.resolve(ttsModel + ".onnx.json");
+        int workers = Math.max(1, SettingsManager.instance().getTtsWorkers());
+        log("Voice '" + ttsModel + "', " + SENTENCES.length + " sentences, " + ROUNDS + " rounds, " + workers + " workers");
+
+        List<String> command = List.of(piperExe.toAbsolutePath().toString(),
+                "--model", model.toAbsolutePath().toString(),
+                "--config", config.toAbsolutePath().toString(),
+                "--output_raw");
+        measure("process per sentence", () -> {
+            for (String sentence : SENTENCES)
+                blackhole += synthesizeWithProcess(command, sentence);
+        });
+
+        try (PiperWorkerPool pool = new PiperWorkerPool(piperExe, SettingsManager.instance().getPathToPiper(), model, config, 1)) {
+            // the first sentence starts the worker, which is the cost paid once
+            blackhole += pool.synthesize(SENTENCES[0]).length;
+            measure("1 worker", () -> {
+                for (String sentence : SENTENCES)
+                    blackhole += pool.synthesize(PiperManager.prepareText(sentence)).length;
+            });
+        }
+
+        try (PiperWorkerPool pool = new PiperWorkerPool(piperExe, SettingsManager.instance().getPathToPiper(), model, config, workers);
+             ExecutorService executorService = Executors.newFixedThreadPool(workers)) {
+            List<Future<byte[]>> warmup = new ArrayList<>();
+            for (int i = 0; i < workers; i++)
+                warmup.add(executorService.submit(() -> pool.synthesize(SENTENCES[0])));
+            for (Future<byte[]> future : warmup)
+                blackhole += future.get().length;
+            measure(workers + " workers", () -> {
+                List<Future<byte[]>> futures = new ArrayList<>();
+                for (String sentence : SENTENCES)
+                    futures.add(executorService.submit(() -> pool.synthesize(PiperManager.prepareText(sentence))));
+                for (Future<byte[]> future : futures)
+                    blackhole += future.get().length;
+            });
+        }
+
+        int synthesisThreads = SettingsManager.instance().getTtsSynthesisThreads();
+        try (OnnxPiperVoice voice = new OnnxPiperVoice(model, config, SettingsManager.instance().getEspeakCommand(), synthesisThreads);
+             ExecutorService executorService = Executors.newFixedThreadPool(synthesisThreads)) {
+            blackhole += voice.synthesize(SENTENCES[0], cancelAction -> {
+            }).length;
+            measure("onnx, " + synthesisThreads + " threads", () -> {
+                List<Future<byte[]>> futures = new ArrayList<>();
+                for (String sentence : SENTENCES)
+                    futures.add(executorService.submit(() -> voice.synthesize(PiperManager.prepareText(sentence), cancelAction -> {
+                    })));
+                for (Future<byte[]> future : futures)
+                    blackhole += future.get().length;
+            });
+        }
+        log("(" + blackhole + " bytes of pcm)");
+    }
+
+    private static String findFirstTtsModel(Path ttsModelFiles) throws Exception {
+        try (Stream<Path> files = Files.list(ttsModelFiles)) {
+            return files.map(x -> x.getFileName().toString())
+                    .filter(x -> x.endsWith(".onnx"))
+                    .sorted()
+                    .map(x -> x.substring(0, x.length() - 5))
+                    .findFirst()
+                    .orElseThrow(() -> new RuntimeException("No TTS model at '" + ttsModelFiles + "'"));
+        }
+    }
+
+    private static long synthesizeWithProcess(List<String> command, String sentence) throws Exception {
+        ProcessBuilder processBuilder = new ProcessBuilder(command);
+        processBuilder.directory(SettingsManager.instance().getPathToPiper().toAbsolutePath().toFile());
+        processBuilder.redirectError(ProcessBuilder.Redirect.DISCARD);
+        Process piperProcess = processBuilder.start();
+        try (OutputStream outputStream = piperProcess.getOutputStream()) {
+            outputStream.write(PiperManager.prepareText(sentence).getBytes(StandardCharsets.UTF_8));
+        }
+        long bytes;
+        try (InputStream inputStream = piperProcess.getInputStream()) {
+            bytes = inputStream.readAllBytes().length;
+        }
+        piperProcess.waitFor();
+        return bytes;
+    }
+
+    private void measure(String name, Round round) throws Exception {
+        long start = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++)
+            round.run();
+        long durationNanos = System.nanoTime() - start;
+        long sentences = (long) SENTENCES.length * ROUNDS;
+        log(String.format("%-22s %8.2f sentences/sec. %8.0f ms/sentence",
+                name,
+                sentences * 1_000_000_000d / durationNanos,
+                durationNanos / 1_000_000d / sentences));
+    }
+
+    private interface Round {
+        void run() throws Exception;
+    }
+}
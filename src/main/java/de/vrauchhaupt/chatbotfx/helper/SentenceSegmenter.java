@@ -0,0 +1,231 @@
+package de.vrauchhaupt.chatbotfx.helper;
+
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.IntPredicate;
+
+/**
+ * Incremental sentence splitter for streamed LLM output.
+ * <p>
+ * Text is fed chunk by chunk with {@link #append(CharSequence)}. Every char is looked at exactly once, partial
+ * sentences are kept across chunks and each finished sentence is handed to the sink. {@link #flush()} emits whatever
+ * is left when the stream has ended.
+ * <p>
+ * A sentence ends at
+ * <ul>
+ *     <li>a line break or a {@code <br>} tag</li>
+ *     <li>one of {@code . ! ? ;} (optionally followed by closing quotes or brackets) and a whitespace</li>
+ *     <li>the start and the end of an {@code *action*} span</li>
+ *     <li>a comma or colon followed by a whitespace, if the sentence is already longer than {@link #SOFT_MAX_LENGTH}</li>
+ * </ul>
+ * Decimals like {@code 3.5} and abbreviations like {@code Mr.} or {@code e.g.} do not end a sentence. Words like
+ * {@code no} or {@code st} are abbreviations only in front of a number or a name, like {@code No. 5} or
+ * {@code St. Louis}, so the sentence is held until the next word starts.
+ * Not thread safe, one instance per stream.
+ */
+public class SentenceSegmenter {
+
+    public static final int SOFT_MAX_LENGTH = 160;
+    public static final int HARD_MAX_LENGTH = 320;
+
+    private static final Set<String> ABBREVIATIONS = Set.of(
+            "mr", "mrs", "ms", "dr", "prof", "sr", "jr", "vs", "etc", "approx", "e.g", "i.e", "a.m", "p.m", "u.s",
+            "dept", "inc", "ltd");
+    /**
+     * words, which are abbreviations only in front of a number, like "No. 5" or "Dec. 24"
+     */
+    private static final Set<String> NUMBER_ABBREVIATIONS = Set.of(
+            "no", "nr", "ca", "fig", "jan", "feb", "mar", "apr", "jun", "jul", "aug", "sep", "sept", "oct", "nov", "dec");
+    /**
+     * words, which are abbreviations only in front of a name, like "St. Louis"
+     */
+    private static final Set<String> NAME_ABBREVIATIONS = Set.of("st", "mt");
+
+    private final StringBuilder buffer = new StringBuilder();
+    private final Consumer<String> sink;
+    private boolean terminatorSeen = false;
+    private boolean insideAsterisk = false;
+    private int tagStart = -1;
+    /**
+     * tells by the next char, whether the word in front of the last '.' was an abbreviation, null, if it was none
+     */
+    private IntPredicate abbreviationFollows = null;
+    /**
+     * the end of the sentence held, until the next word tells, whether it ends at an abbreviation
+     */
+    private int heldSentenceEnd = -1;
+
+    public SentenceSegmenter(Consumer<String> sink) {
+        this.sink = sink;
+    }
+
+    public void append(CharSequence chunk) {
+        if (chunk == null)
+            return;
+        for (int i = 0; i < chunk.length(); i++)
+            accept(chunk.charAt(i));
+    }
+
+    public void flush() {
+        emit();
+        insideAsterisk = false;
+    }
+
+    public void reset() {
+        buffer.setLength(0);
+        terminatorSeen = false;
+        insideAsterisk = false;
+        tagStart = -1;
+        abbreviationFollows = null;
+        heldSentenceEnd = -1;
+    }
+
+    private void accept(char c) {
+        if (c == '\n' || c == '\r') {
+            emit();
+            return;
+        }
+        if (heldSentenceEnd >= 0) {
+            if (Character.isWhitespace(c)) {
+                buffer.append(c);
+                return;
+            }
+            if (!abbreviationFollows.test(c))
+                emit(heldSentenceEnd);
+            heldSentenceEnd = -1;
+            abbreviationFollows = null;
+        }
+        if (terminatorSeen) {
+            if (Character.isWhitespace(c)) {
+                if (abbreviationFollows != null) {
+                    terminatorSeen = false;
+                    heldSentenceEnd = buffer.length();
+                    buffer.append(c);
+                    return;
+                }
+                emit();
+                return;
+            }
+            if (!isClosingChar(c) && !isTerminator(c)) {
+                terminatorSeen = false;
+                abbreviationFollows = null;
+            }
+        }
+        if (tagStart >= 0 && c == '>') {
+            buffer.append(c);
+            if (isLineBreakTag(tagStart)) {
+                buffer.setLength(tagStart);
+                emit();
+            }
+            tagStart = -1;
+            return;
+        }
+        switch (c) {
+            case '<' -> {
+                tagStart = buffer.length();
+                buffer.append(c);
+            }
+            case '.', '!', '?', ';' -> {
+                buffer.append(c);
+                abbreviationFollows = null;
+                if (c != '.' || !endsWithAbbreviation())
+                    terminatorSeen = true;
+            }
+            case ',', ':' -> {
+                buffer.append(c);
+                if (buffer.length() >= SOFT_MAX_LENGTH)
+                    terminatorSeen = true;
+            }
+            case '*' -> {
+                if (insideAsterisk) {
+                    buffer.append(c);
+                    emit();
+                    insideAsterisk = false;
+                } else {
+                    emit();
+                    buffer.append(c);
+                    insideAsterisk = true;
+                }
+            }
+            default -> {
+                if (Character.isWhitespace(c) && buffer.length() >= HARD_MAX_LENGTH) {
+                    emit();
+                    return;
+                }
+                buffer.append(c);
+            }
+        }
+    }
+
+    private void emit() {
+        emit(buffer.length());
+    }
+
+    /**
+     * Hands the buffer up to the end on as a sentence, the rest stays for the next one.
+     */
+    private void emit(int end) {
+        terminatorSeen = false;
+        tagStart = -1;
+        abbreviationFollows = null;
+        heldSentenceEnd = -1;
+        if (buffer.isEmpty())
+            return;
+        String sentence = buffer.substring(0, end).trim();
+        buffer.delete(0, end);
+        if (!sentence.isEmpty())
+            sink.accept(sentence);
+    }
+
+    private boolean isLineBreakTag(int start) {
+        // buffer holds "<br>", "<br/>" or "<br />" from start on
+        int end = buffer.length() - 1;
+        int i = start + 1;
+        while (i < end && buffer.charAt(i) == ' ')
+            i++;
+        if (i + 1 >= end || Character.toLowerCase(buffer.charAt(i)) != 'b' || Character.toLowerCase(buffer.charAt(i + 1)) != 'r')
+            return false;
+        for (i = i + 2; i < end; i++) {
+            char c = buffer.charAt(i);
+            if (c != ' ' && c != '/')
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Sets {@link #abbreviationFollows}, if the word is an abbreviation only in front of a number or a name.
+     */
+    private boolean endsWithAbbreviation() {
+        // buffer ends with the '.' just appended, look at the word in front of it
+        int end = buffer.length() - 1;
+        int start = end;
+        while (start > 0 && !Character.isWhitespace(buffer.charAt(start - 1)) && !isOpeningChar(buffer.charAt(start - 1)))
+            start--;
+        int length = end - start;
+        if (length == 0)
+            return false;
+        if (length == 1 && Character.isUpperCase(buffer.charAt(start)))
+            return true; // initials like "J. R. R. Tolkien"
+        if (length > 6)
+            return false;
+        String word = buffer.substring(start, end).toLowerCase();
+        if (NUMBER_ABBREVIATIONS.contains(word))
+            abbreviationFollows = Character::isDigit;
+        else if (NAME_ABBREVIATIONS.contains(word))
+            abbreviationFollows = Character::isUpperCase;
+        return ABBREVIATIONS.contains(word);
+    }
+
+    private static boolean isTerminator(char c) {
+        return c == '.' || c == '!' || c == '?' || c == ';';
+    }
+
+    private static boolean isClosingChar(char c) {
+        return c == '"' || c == '\'' || c == ')' || c == ']' || c == '”' || c == '’' || c == '»';
+    }
+
+    private static boolean isOpeningChar(char c) {
+        return c == '"' || c == '\'' || c == '(' || c == '[' || c == '“' || c == '‘' || c == '«';
+    }
+}
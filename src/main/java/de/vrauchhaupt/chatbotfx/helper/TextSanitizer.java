@@ -0,0 +1,639 @@
+package de.vrauchhaupt.chatbotfx.helper;
+
+import org.jsoup.nodes.Entities;
+import org.jsoup.parser.Tag;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Cleans LLM output before it is printed and spoken.
+ * <p>
+ * Produces the same result as
+ * <pre>
+ * String returnValue = Jsoup.parse(aString).text();
+ * returnValue = returnValue.replaceAll("\r?\n|\r", "");
+ * returnValue = returnValue.replaceAll("&lt;[^&gt;]*&gt;", " ");
+ * returnValue = returnValue.replaceAll("&lt;[^&gt;]*}", " ");
+ * returnValue = returnValue.replaceAll("[^\\x00-\\x7F]", "");
+ * returnValue = returnValue.replaceAll("[&lt;&gt;|]", "");
+ * returnValue = returnValue.replace("E &amp;#xDBC;&amp;##R; = .'", "");
+ * </pre>
+ * for the text an LLM produces, but without building a DOM and without regular expressions: the first pass strips
+ * tags, decodes entities and normalises whitespace like {@code Jsoup.parse(..).text()} does, the second pass applies
+ * the replacements. Both passes work on buffers which are reused between calls, so an instance is not thread safe.
+ * <p>
+ * The first pass follows the tokenizer of jsoup including the text of {@code <textarea>}, {@code <title>} and the
+ * other elements without markup, the whitespace kept in {@code <pre>} and the dropped NUL chars. It does not rebuild
+ * the tree like jsoup does, so the text still differs in the separating spaces, where inline elements are left open
+ * across the start of a block, e.g. {@code <p><b>a<xmp>b}, and for a {@code <noscript>} at the very start.
+ */
+public class TextSanitizer {
+
+    /**
+     * start tags, which stay in the head of the document, all others start the body
+     */
+    private static final Set<String> HEAD_START_TAGS = Set.of("html", "head", "base", "basefont", "bgsound", "command",
+            "link", "meta", "title", "noframes", "style", "script", "noscript", "template");
+    /**
+     * end tags, which start the body, all others are ignored in the head
+     */
+    private static final Set<String> HEAD_ENDING_END_TAGS = Set.of("head", "body", "html", "br");
+    private static final String GARBAGE = "E &#xDBC;&##R; = .'";
+    private static final char[] WIN1252_EXTENSIONS = {
+            0x20AC, 0x0081, 0x201A, 0x0192, 0x201E, 0x2026, 0x2020, 0x2021, 0x02C6, 0x2030, 0x0160, 0x2039, 0x0152, 0x008D, 0x017D, 0x008F,
+            0x0090, 0x2018, 0x2019, 0x201C, 0x201D, 0x2022, 0x2013, 0x2014, 0x02DC, 0x2122, 0x0161, 0x203A, 0x0153, 0x009D, 0x017E, 0x0178};
+
+    private final StringBuilder text = new StringBuilder(256);
+    private final StringBuilder result = new StringBuilder(256);
+    private final StringBuilder name = new StringBuilder(16);
+    private final List<String> openBlocks = new ArrayList<>();
+    private CharSequence input;
+    private int pos;
+    private boolean separatorPending;
+    /**
+     * inside {@code <pre>}, {@code <textarea>}, {@code <title>} and {@code <plaintext>} the text is taken as it is
+     */
+    private boolean preserveWhitespace;
+    /**
+     * true, when the text between two tags has begun. A text consisting of a single NUL only is dropped like jsoup does,
+     * so a NUL starting the text is held back until the next char.
+     */
+    private boolean textStarted;
+    private boolean nulHeld;
+    /**
+     * true, while a {@code <title>} at the start is still in the head of the document, the body following it is
+     * separated from it
+     */
+    private boolean inHead;
+    private boolean inRawText;
+
+    public String clean(CharSequence input) {
+        if (input == null || input.isEmpty())
+            return "";
+        toTextBuffer(input);
+        applyReplacements();
+        int garbage = result.indexOf(GARBAGE);
+        while (garbage >= 0) {
+            result.delete(garbage, garbage + GARBAGE.length());
+            garbage = result.indexOf(GARBAGE, garbage);
+        }
+        return result.toString();
+    }
+
+    /**
+     * Runs the first pass only.
+     *
+     * @return the same as {@code Jsoup.parse(input).text()}
+     */
+    public String toText(CharSequence input) {
+        if (input == null || input.isEmpty())
+            return "";
+        toTextBuffer(input);
+        // the second pass trims while replacing
+        return text.toString().trim();
+    }
+
+    private void toTextBuffer(CharSequence input) {
+        this.input = input;
+        this.pos = 0;
+        text.setLength(0);
+        openBlocks.clear();
+        separatorPending = false;
+        preserveWhitespace = false;
+        textStarted = false;
+        nulHeld = false;
+        inHead = true;
+        inRawText = false;
+        try {
+            extractText();
+        } finally {
+            this.input = null;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+    // first pass: html to text
+    // ---------------------------------------------------------------------------------------------------------------
+
+    private void extractText() {
+        int length = input.length();
+        while (pos < length) {
+            char c = input.charAt(pos);
+            if (c == '<') {
+                readMarkup();
+            } else if (c == '&') {
+                pos++;
+                readCharacterReference();
+            } else {
+                pos++;
+                appendText(c);
+            }
+        }
+    }
+
+    private void readMarkup() {
+        int length = input.length();
+        int start = pos;
+        pos++; // '<'
+        if (pos >= length) {
+            appendText('<');
+            return;
+        }
+        char c = input.charAt(pos);
+        if (isAsciiLetter(c)) {
+            readTag(false);
+        } else if (c == '/') {
+            pos++;
+            if (pos >= length) {
+                appendText('<');
+                appendText('/');
+            } else if (isAsciiLetter(input.charAt(pos))) {
+                readTag(true);
+            } else if (input.charAt(pos) == '>') {
+                pos++; // "</>" is ignored
+            } else {
+                skipComment(false);
+            }
+        } else if (c == '!') {
+            if (regionMatchesIgnoreCase(pos + 1, "doctype")) {
+                endText();
+                skipPast('>'); // ignored inside the body
+            }
+            else
+                skipComment(startsWith(pos + 1, "--"));
+        } else if (c == '?') {
+            skipComment(false);
+        } else {
+            pos = start + 1;
+            appendText('<');
+        }
+    }
+
+    private void readTag(boolean endTag) {
+        endText();
+        int length = input.length();
+        name.setLength(0);
+        while (pos < length) {
+            char c = input.charAt(pos);
+            if (c == '>' || c == '/' || c == '<' || isHtmlWhitespace(c))
+                break;
+            name.append(Character.toLowerCase(c));
+            pos++;
+        }
+        if (!skipAttributes())
+            return; // unterminated tag at the end is dropped
+        String tagName = name.toString();
+        if (inHead && (endTag ? HEAD_ENDING_END_TAGS.contains(tagName) : !HEAD_START_TAGS.contains(tagName)))
+            leaveHead();
+        if (!endTag && (tagName.equals("script") || tagName.equals("style"))) {
+            // both are block elements whose content is not part of the text
+            appendSeparator();
+            skipRawText(tagName);
+            separatorPending = true;
+            return;
+        }
+        if (tagName.equals("br")) {
+            appendSeparator(); // "</br>" is a line break, too
+            return;
+        }
+        Tag tag = Tag.valueOf(tagName);
+        boolean block = tag.isBlock();
+        if (!endTag) {
+            if (block) {
+                if (!openBlocks.isEmpty() && openBlocks.getLast().equals("p"))
+                    openBlocks.removeLast(); // a paragraph ends where the next block starts
+                openBlocks.add(tagName);
+                preserveWhitespace = openBlocks.contains("pre");
+                appendSeparator();
+            } else if (separatorPending) {
+                // a closed block is only separated from a following inline element, unknown tags count as block
+                if (tag.formatAsBlock())
+                    separatorPending = false;
+                else
+                    appendSeparator();
+            }
+            readContent(tagName);
+            return;
+        }
+        if (block)
+            closeBlock(tagName);
+    }
+
+    private void closeBlock(String tagName) {
+        int open = openBlocks.lastIndexOf(tagName);
+        if (open >= 0) {
+            openBlocks.subList(open, openBlocks.size()).clear();
+            preserveWhitespace = openBlocks.contains("pre");
+            separatorPending = true;
+        } else if (tagName.equals("p")) {
+            // a stray </p> creates an empty paragraph
+            appendSeparator();
+            separatorPending = true;
+        }
+    }
+
+    /**
+     * Reads the content of the elements, which is no markup: the text of {@code <textarea>} and {@code <title>} only
+     * has character references, the one of {@code <xmp>}, {@code <iframe>}, {@code <noembed>} and {@code <noframes>}
+     * is taken as it is,
+     * like everything following {@code <plaintext>}. A line feed right after {@code <pre>} and {@code <listing>} is
+     * dropped.
+     */
+    private void readContent(String tagName) {
+        switch (tagName) {
+            case "pre", "listing" -> skipLineFeed();
+            case "textarea", "title" -> readRawText(tagName, true, true);
+            case "xmp", "iframe", "noembed", "noframes" -> readRawText(tagName, false, false);
+            case "plaintext" -> readRawText(null, false, true);
+            default -> {
+            }
+        }
+    }
+
+    private void skipLineFeed() {
+        if (pos < input.length() && input.charAt(pos) == '\n')
+            pos++;
+    }
+
+    /**
+     * Appends the text up to the end tag of the element, which is left for {@link #readMarkup()}. Like jsoup, a start
+     * tag ends the text of {@code <textarea>} and {@code <title>}, if their end tag does not follow anymore.
+     *
+     * @param tagName null, if the text goes to the end of the input
+     */
+    private void readRawText(String tagName, boolean characterReferences, boolean preserve) {
+        // the NUL chars of raw text are replaced, a NUL given by a character reference stays
+        textStarted = true;
+        inRawText = true;
+        boolean preserveAround = preserveWhitespace;
+        preserveWhitespace |= preserve;
+        int length = input.length();
+        while (pos < length) {
+            char c = input.charAt(pos);
+            if (c == '<' && tagName != null) {
+                if (isEndTagOf(tagName))
+                    break;
+                if (characterReferences && pos + 1 < length && isAsciiLetter(input.charAt(pos + 1))
+                        && !containsEndTagOf(tagName, pos + 1)) {
+                    if (Tag.valueOf(tagName).isBlock())
+                        closeBlock(tagName);
+                    break;
+                }
+            }
+            pos++;
+            if (c == '&' && characterReferences)
+                readCharacterReference();
+            else
+                appendText(c == '\u0000' ? '\uFFFD' : c);
+        }
+        preserveWhitespace = preserveAround;
+        inRawText = false;
+    }
+
+    /**
+     * @return true, if {@code </name} follows somewhere, written in lower or in upper case as jsoup looks for it
+     */
+    private boolean containsEndTagOf(String tagName, int from) {
+        String endTag = "</" + tagName;
+        String in = input.subSequence(from, input.length()).toString();
+        return in.contains(endTag) || in.contains(endTag.toUpperCase(Locale.ROOT));
+    }
+
+    /**
+     * @return true, if the input continues with the end tag of the element, a name only starting like it is text
+     */
+    private boolean isEndTagOf(String tagName) {
+        int afterName = pos + 2 + tagName.length();
+        if (afterName >= input.length() || input.charAt(pos + 1) != '/' || !regionMatchesIgnoreCase(pos + 2, tagName))
+            return false;
+        char c = input.charAt(afterName);
+        return c == '>' || c == '/' || isHtmlWhitespace(c);
+    }
+
+    /**
+     * Skips the rest of a tag like the html tokenizer does. A {@code <} where a new attribute would start ends the tag
+     * without being consumed.
+     *
+     * @return false, if the input ended before the tag was complete
+     */
+    private boolean skipAttributes() {
+        int length = input.length();
+        AttributeState state = AttributeState.BEFORE_NAME;
+        while (pos < length) {
+            char c = input.charAt(pos);
+            switch (state) {
+                case BEFORE_NAME, AFTER_NAME -> {
+                    if (c == '<' && state == AttributeState.BEFORE_NAME)
+                        return true;
+                    if (c == '>') {
+                        pos++;
+                        return true;
+                    }
+                    if (c == '/')
+                        state = AttributeState.BEFORE_NAME;
+                    else if (c == '=' && state == AttributeState.AFTER_NAME)
+                        state = AttributeState.BEFORE_VALUE;
+                    else if (!isHtmlWhitespace(c))
+                        state = AttributeState.NAME;
+                }
+                case NAME -> {
+                    if (c == '>') {
+                        pos++;
+                        return true;
+                    }
+                    if (c == '=')
+                        state = AttributeState.BEFORE_VALUE;
+                    else if (c == '/')
+                        state = AttributeState.BEFORE_NAME;
+                    else if (isHtmlWhitespace(c))
+                        state = AttributeState.AFTER_NAME;
+                }
+                case BEFORE_VALUE -> {
+                    if (c == '>') {
+                        pos++;
+                        return true;
+                    }
+                    if (c == '"')
+                        state = AttributeState.DOUBLE_QUOTED_VALUE;
+                    else if (c == '\'')
+                        state = AttributeState.SINGLE_QUOTED_VALUE;
+                    else if (!isHtmlWhitespace(c))
+                        state = AttributeState.UNQUOTED_VALUE;
+                }
+                case DOUBLE_QUOTED_VALUE, SINGLE_QUOTED_VALUE -> {
+                    if (c == (state == AttributeState.DOUBLE_QUOTED_VALUE ? '"' : '\''))
+                        state = AttributeState.BEFORE_NAME;
+                }
+                case UNQUOTED_VALUE -> {
+                    if (c == '>') {
+                        pos++;
+                        return true;
+                    }
+                    if (isHtmlWhitespace(c))
+                        state = AttributeState.BEFORE_NAME;
+                }
+            }
+            pos++;
+        }
+        return false;
+    }
+
+    private void skipRawText(String tagName) {
+        int length = input.length();
+        while (pos < length) {
+            if (input.charAt(pos) == '<' && pos + 1 < length && input.charAt(pos + 1) == '/'
+                    && regionMatchesIgnoreCase(pos + 2, tagName)) {
+                pos += 2 + tagName.length();
+                skipPast('>');
+                return;
+            }
+            pos++;
+        }
+    }
+
+    /**
+     * Skips a comment, a doctype or a bogus comment like {@code <?xml ..>}. Comments are nodes of their own, so a
+     * pending separator of a closed block element is not written.
+     */
+    private void skipComment(boolean regularComment) {
+        endText();
+        separatorPending = false;
+        if (!regularComment) {
+            skipPast('>');
+            return;
+        }
+        pos += 3; // "!--"
+        int length = input.length();
+        if (startsWith(pos, ">")) {
+            pos++;
+            return;
+        }
+        if (startsWith(pos, "->")) {
+            pos += 2;
+            return;
+        }
+        while (pos < length) {
+            if (startsWith(pos, "-->")) {
+                pos += 3;
+                return;
+            }
+            if (startsWith(pos, "--!>")) {
+                pos += 4;
+                return;
+            }
+            pos++;
+        }
+    }
+
+    private void skipPast(char end) {
+        int length = input.length();
+        while (pos < length && input.charAt(pos) != end)
+            pos++;
+        if (pos < length)
+            pos++;
+    }
+
+    private void readCharacterReference() {
+        int length = input.length();
+        if (pos >= length) {
+            appendText('&');
+            return;
+        }
+        char c = input.charAt(pos);
+        if (c == '#') {
+            readNumericReference();
+            return;
+        }
+        int start = pos;
+        int end = pos;
+        while (end < length && Character.isLetter(input.charAt(end)))
+            end++;
+        while (end < length && isAsciiDigit(input.charAt(end)))
+            end++;
+        boolean looksLegit = end < length && input.charAt(end) == ';';
+        String entityName = end > start ? input.subSequence(start, end).toString() : "";
+        if (entityName.isEmpty() || !(Entities.isBaseNamedEntity(entityName) || (looksLegit && Entities.isNamedEntity(entityName)))) {
+            appendText('&');
+            return;
+        }
+        pos = looksLegit ? end + 1 : end;
+        String decoded = Entities.getByName(entityName);
+        for (int i = 0; i < decoded.length(); i++)
+            appendText(decoded.charAt(i));
+    }
+
+    private void readNumericReference() {
+        int length = input.length();
+        int start = pos; // '#'
+        int digitsStart = pos + 1;
+        boolean hex = digitsStart < length && (input.charAt(digitsStart) == 'x' || input.charAt(digitsStart) == 'X');
+        if (hex)
+            digitsStart++;
+        int end = digitsStart;
+        while (end < length && (hex ? isHexDigit(input.charAt(end)) : isAsciiDigit(input.charAt(end))))
+            end++;
+        if (end == digitsStart) {
+            pos = start;
+            appendText('&');
+            return;
+        }
+        int codePoint = -1;
+        try {
+            codePoint = Integer.parseInt(input, digitsStart, end, hex ? 16 : 10);
+        } catch (NumberFormatException e) {
+            // too large, handled as invalid below
+        }
+        pos = end < length && input.charAt(end) == ';' ? end + 1 : end;
+        if (codePoint == -1 || (codePoint >= 0xD800 && codePoint <= 0xDFFF) || codePoint > 0x10FFFF) {
+            appendText('\uFFFD');
+        } else if (codePoint >= 0x80 && codePoint < 0x80 + WIN1252_EXTENSIONS.length) {
+            appendText(WIN1252_EXTENSIONS[codePoint - 0x80]);
+        } else if (Character.isBmpCodePoint(codePoint)) {
+            appendText((char) codePoint);
+        } else {
+            appendText(Character.highSurrogate(codePoint));
+            appendText(Character.lowSurrogate(codePoint));
+        }
+    }
+
+    private void leaveHead() {
+        inHead = false;
+        if (!text.isEmpty())
+            appendSeparator();
+    }
+
+    /**
+     * A tag or a comment ends the text before it.
+     */
+    private void endText() {
+        textStarted = false;
+        nulHeld = false;
+    }
+
+    private void appendText(char c) {
+        if (inHead && !inRawText && !isHtmlWhitespace(c))
+            leaveHead();
+        if (!textStarted) {
+            textStarted = true;
+            if (c == '\u0000') {
+                nulHeld = true;
+                return;
+            }
+        } else if (nulHeld) {
+            nulHeld = false;
+            appendChar('\u0000');
+        }
+        appendChar(c);
+    }
+
+    private void appendChar(char c) {
+        if (separatorPending)
+            appendSeparator();
+        if (preserveWhitespace) {
+            text.append(c);
+        } else if (isActuallyWhitespace(c)) {
+            appendSeparator();
+        } else if (c != '\u200B' && c != '\u00AD') { // invisible chars are dropped
+            text.append(c);
+        }
+    }
+
+    private void appendSeparator() {
+        separatorPending = false;
+        if (text.isEmpty() || text.charAt(text.length() - 1) != ' ')
+            text.append(' ');
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+    // second pass: the replacements on the text
+    // ---------------------------------------------------------------------------------------------------------------
+
+    private void applyReplacements() {
+        result.setLength(0);
+        int start = 0;
+        int end = text.length();
+        while (start < end && text.charAt(start) <= ' ')
+            start++;
+        while (end > start && text.charAt(end - 1) <= ' ')
+            end--;
+
+        int lastBrace = text.lastIndexOf("}", end - 1);
+        int nextClose = -2; // not searched yet
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            if (c == '<') {
+                if (nextClose != -1 && nextClose < i)
+                    nextClose = indexOf('>', i + 1, end);
+                if (nextClose > i) {
+                    // "<[^>]*>" -> " "
+                    result.append(' ');
+                    i = nextClose;
+                    continue;
+                }
+                if (lastBrace > i) {
+                    // "<[^>]*}" -> " ", there is no '>' left behind this '<'
+                    result.append(' ');
+                    i = lastBrace;
+                }
+                continue;
+            }
+            if (c == '\r' || c == '\n' || c == '>' || c == '|' || c > 0x7F)
+                continue;
+            result.append(c);
+        }
+    }
+
+    private int indexOf(char c, int from, int end) {
+        for (int i = from; i < end; i++)
+            if (text.charAt(i) == c)
+                return i;
+        return -1;
+    }
+
+    // ---------------------------------------------------------------------------------------------------------------
+
+    private boolean startsWith(int from, String prefix) {
+        if (from + prefix.length() > input.length())
+            return false;
+        for (int i = 0; i < prefix.length(); i++)
+            if (input.charAt(from + i) != prefix.charAt(i))
+                return false;
+        return true;
+    }
+
+    private boolean regionMatchesIgnoreCase(int from, String lowerCaseName) {
+        if (from + lowerCaseName.length() > input.length())
+            return false;
+        for (int i = 0; i < lowerCaseName.length(); i++)
+            if (Character.toLowerCase(input.charAt(from + i)) != lowerCaseName.charAt(i))
+                return false;
+        return true;
+    }
+
+    private static boolean isActuallyWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\f' || c == '\r' || c == '\u00A0';
+    }
+
+    private static boolean isHtmlWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\f' || c == '\r';
+    }
+
+    private static boolean isAsciiLetter(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
+    private static boolean isAsciiDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isHexDigit(char c) {
+        return isAsciiDigit(c) || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F');
+    }
+
+    private enum AttributeState {
+        BEFORE_NAME, NAME, AFTER_NAME, BEFORE_VALUE, DOUBLE_QUOTED_VALUE, SINGLE_QUOTED_VALUE, UNQUOTED_VALUE
+    }
+}
@@ -3,5 +3,24 @@ package de.vrauchhaupt.chatbotfx.manager;
 import de.vrauchhaupt.chatbotfx.IMessaging;
 
 public abstract class AbstractManager implements IMessaging {
+    private final Object workStateLock = new Object();
+    private WorkTracker.WorkTicket workTicket = null;
+
     public abstract boolean isWorking();
+
+    /**
+     * Tells the {@link WorkTracker}, whether the manager is working. To be called after every change, which may change
+     * {@link #isWorking()}.
+     */
+    protected void reportWorkState() {
+        synchronized (workStateLock) {
+            boolean working = isWorking();
+            if (working && workTicket == null) {
+                workTicket = WorkTracker.instance().begin(getClass().getSimpleName());
+            } else if (!working && workTicket != null) {
+                workTicket.close();
+                workTicket = null;
+            }
+        }
+    }
 }
@@ -0,0 +1,161 @@
+package de.vrauchhaupt.chatbotfx.manager;
+
+import de.vrauchhaupt.chatbotfx.IMessaging;
+import de.vrauchhaupt.chatbotfx.model.TtsSentence;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.SourceDataLine;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * One sound output line, which stays open while sentences of the same audio format are played back to back. Draining
+ * and reopening the line for every sentence would put a gap between the sentences.
+ * <p>
+ * As the line is not drained, a sentence is written completely long before it is heard. The sentence is informed
+ * about being spoken, when the playing position of the line has passed its last frame.
+ */
+public class AudioOutput implements IMessaging {
+
+    private final Queue<PendingSentence> pendingSentences = new ConcurrentLinkedQueue<>();
+    private SourceDataLine line = null;
+    private AudioFormat format = null;
+    private long writtenBytes = 0;
+    /**
+     * the line only takes whole frames, the start of a frame split between two writes waits here
+     */
+    private byte[] partialFrame = new byte[0];
+    private int partialFrameLength = 0;
+
+    /**
+     * Writes the samples to the line, opening the line for the format first, if needed. Blocks, while the buffer of the
+     * line is full.
+     */
+    public void write(AudioFormat audioFormat, byte[] buffer, int offset, int length) throws LineUnavailableException {
+        if (line == null || !audioFormat.matches(format))
+            open(audioFormat);
+        int frameSize = format.getFrameSize();
+        if (partialFrameLength > 0) {
+            int fill = Math.min(frameSize - partialFrameLength, length);
+            System.arraycopy(buffer, offset, partialFrame, partialFrameLength, fill);
+            partialFrameLength += fill;
+            offset += fill;
+            length -= fill;
+            if (partialFrameLength < frameSize)
+                return;
+            writtenBytes += line.write(partialFrame, 0, frameSize);
+            partialFrameLength = 0;
+        }
+        int wholeFrames = length - length % frameSize;
+        writtenBytes += line.write(buffer, offset, wholeFrames);
+        partialFrameLength = length - wholeFrames;
+        System.arraycopy(buffer, offset + wholeFrames, partialFrame, 0, partialFrameLength);
+        informSpokenSentences();
+    }
+
+    /**
+     * The sentence is going to be spoken, when the line has played everything written up to now.
+     */
+    public void sentenceWritten(TtsSentence sentence) {
+        partialFrameLength = 0;
+        if (line == null) {
+            sentence.informSpoken();
+            return;
+        }
+        pendingSentences.add(new PendingSentence(sentence, writtenBytes / format.getFrameSize()));
+        informSpokenSentences();
+    }
+
+    public boolean hasPendingSentences() {
+        return !pendingSentences.isEmpty();
+    }
+
+    /**
+     * @return the time until the last written sentence is played completely, 0, if there is none
+     */
+    public long millisUntilAllSpoken() {
+        if (line == null || pendingSentences.isEmpty())
+            return 0;
+        long lastEndFrame = 0;
+        for (PendingSentence pendingSentence : pendingSentences)
+            lastEndFrame = Math.max(lastEndFrame, pendingSentence.endFrame);
+        long framesLeft = Math.max(0, lastEndFrame - line.getLongFramePosition());
+        return (long) Math.ceil(framesLeft * 1000d / format.getFrameRate());
+    }
+
+    /**
+     * @return the time until the first written sentence is played completely, 0, if there is none
+     */
+    public long millisUntilNextSpoken() {
+        if (line == null || pendingSentences.isEmpty())
+            return 0;
+        long framesLeft = Math.max(0, pendingSentences.peek().endFrame - line.getLongFramePosition());
+        return (long) Math.ceil(framesLeft * 1000d / format.getFrameRate());
+    }
+
+    /**
+     * Informs all sentences, which the line has played completely.
+     */
+    public void informSpokenSentences() {
+        if (line == null)
+            return;
+        long playedFrames = line.getLongFramePosition();
+        while (!pendingSentences.isEmpty() && pendingSentences.peek().endFrame <= playedFrames)
+            pendingSentences.poll().sentence.informSpoken();
+    }
+
+    /**
+     * Drops everything not yet played.
+     */
+    public void flush() {
+        if (line != null) {
+            line.stop();
+            line.flush();
+            line.start();
+            writtenBytes = line.getLongFramePosition() * format.getFrameSize();
+        }
+        partialFrameLength = 0;
+        pendingSentences.forEach(x -> x.sentence.informSpoken());
+        pendingSentences.clear();
+    }
+
+    private void open(AudioFormat audioFormat) throws LineUnavailableException {
+        close();
+        int bufferMillis = SettingsManager.instance().getAudioBufferMillis();
+        int bufferSize = (int) (audioFormat.getFrameRate() * bufferMillis / 1000) * audioFormat.getFrameSize();
+        line = AudioSystem.getSourceDataLine(audioFormat);
+        line.open(audioFormat, bufferSize);
+        line.start();
+        format = audioFormat;
+        writtenBytes = 0;
+        partialFrame = new byte[audioFormat.getFrameSize()];
+        partialFrameLength = 0;
+        logLn("Opened sound output for " + audioFormat + " with a buffer of " + bufferMillis + " ms");
+    }
+
+    /**
+     * Plays the rest of the written samples and closes the line.
+     */
+    public void close() {
+        if (line == null)
+            return;
+        line.drain();
+        pendingSentences.forEach(x -> x.sentence.informSpoken());
+        pendingSentences.clear();
+        line.close();
+        line = null;
+        format = null;
+    }
+
+    private static class PendingSentence {
+        private final TtsSentence sentence;
+        private final long endFrame;
+
+        private PendingSentence(TtsSentence sentence, long endFrame) {
+            this.sentence = sentence;
+            this.endFrame = endFrame;
+        }
+    }
+}
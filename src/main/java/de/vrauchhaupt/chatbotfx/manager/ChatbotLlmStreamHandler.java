@@ -1,20 +1,20 @@
 package de.vrauchhaupt.chatbotfx.manager;
 
 import de.vrauchhaupt.chatbotfx.IMessaging;
+import de.vrauchhaupt.chatbotfx.helper.SentenceSegmenter;
+import de.vrauchhaupt.chatbotfx.helper.TextSanitizer;
 import de.vrauchhaupt.chatbotfx.model.TtsSentence;
 import io.github.ollama4j.models.chat.OllamaChatResponseModel;
 import io.github.ollama4j.models.chat.OllamaChatTokenHandler;
-import org.jsoup.Jsoup;
 
-import java.util.List;
+public final class ChatbotLlmStreamHandler implements IMessaging, OllamaChatTokenHandler {
 
-public class ChatbotLlmStreamHandler implements IMessaging, OllamaChatTokenHandler {
-
-    private static final List<String> sentenceEndings = List.of(
-            ".", ";", "!", "?",
-            "!\"", ".\"", "?\"",
-            "<br>", "*");
-    private String lastSentences = "";
+    private final SentenceSegmenter sentenceSegmenter = new SentenceSegmenter(this::appendAnswer);
+    private final TextSanitizer textSanitizer = new TextSanitizer();
+    private final TtsChunker ttsChunker = new TtsChunker(x -> PiperManager.instance().fileSentence(x),
+            () -> PiperManager.instance().getPipelineMetrics().getTargetChunkLength(),
+            () -> PiperManager.instance().isWorking(),
+            x -> PiperManager.instance().isInTtsAudioCache(x));
     private int chatMessageIndex;
 
     public ChatbotLlmStreamHandler() {
@@ -22,6 +22,9 @@ public class ChatbotLlmStreamHandler implements IMessaging, OllamaChatTokenHandl
 
     public ChatbotLlmStreamHandler setChatMessageIndex(int chatMessageIndex) {
         this.chatMessageIndex = chatMessageIndex;
+        sentenceSegmenter.reset();
+        // sentences held back from a cancelled or failed stream must not be spoken in this answer
+        ttsChunker.discard();
         return this;
     }
 
@@ -30,40 +33,28 @@ public class ChatbotLlmStreamHandler implements IMessaging, OllamaChatTokenHandl
             return;
 
         logLn("Original sentence '" + curSentence + "'");
-        curSentence = cleanWith(curSentence).trim();
+        curSentence = textSanitizer.clean(curSentence).trim();
+        if (curSentence.isEmpty())
+            return;
         TtsSentence ttsSentence = new TtsSentence(curSentence, chatMessageIndex);
         PrintingManager.instance().addToPrintingQueue(ttsSentence);
-        PiperManager.instance().fileSentence(ttsSentence);
-    }
-
-    private String cleanWith(String aString) {
-        String returnValue = Jsoup.parse(aString).text();
-        returnValue = returnValue.replaceAll("\r?\n|\r", "");
-        returnValue = returnValue.replaceAll("<[^>]*>", " ");
-        returnValue = returnValue.replaceAll("<[^>]*}", " ");
-        returnValue = returnValue.replaceAll("[^\\x00-\\x7F]", "");
-        returnValue = returnValue.replaceAll("[<>|]", "");
-        returnValue = returnValue.replace("E &#xDBC;&##R; = .'", "");
-        return returnValue;
+        ttsChunker.accept(ttsSentence);
     }
 
-
     public void inputHasStopped() {
-        lastSentences = "";
+        sentenceSegmenter.flush();
+        ttsChunker.flush();
     }
 
+    /**
+     * Called by ollama for every streamed chunk of the answer. The chunks are collected until a sentence is complete,
+     * so display and TTS of the first sentence can start while the model is still generating.
+     */
     @Override
     public void accept(OllamaChatResponseModel responseModel) {
-        String message = responseModel.getMessage().getResponse();
-        String[] splittedMessages = message.split("\\n");
-        for (String splittedMessage : splittedMessages) {
-            if (splittedMessage.isEmpty() || splittedMessage.isBlank())
-                continue;
-            logLn("Original sentence '" + splittedMessage + "'");
-            splittedMessage = cleanWith(splittedMessage).trim();
-            TtsSentence ttsSentence = new TtsSentence(splittedMessage, chatMessageIndex);
-            PrintingManager.instance().addToPrintingQueue(ttsSentence);
-            PiperManager.instance().fileSentence(ttsSentence);
-        }
+        if (responseModel.getMessage() == null)
+            return;
+        sentenceSegmenter.append(responseModel.getMessage().getResponse());
+        ttsChunker.poll();
     }
 }
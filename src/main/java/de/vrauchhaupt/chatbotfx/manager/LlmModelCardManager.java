@@ -25,7 +25,11 @@ public class LlmModelCardManager extends AbstractManager {
     private Map<String, Path> availableLlmModelFiles = null;
 
     private LlmModelCardManager() {
-        selectedLlModelCard.addListener((observable, oldValue, newValue) -> llmModelHasChanged(newValue));
+        selectedLlModelCard.addListener((observable, oldValue, newValue) -> {
+            if (oldValue != null && (newValue == null || !oldValue.getLlmModel().equals(newValue.getLlmModel())))
+                OllamaManager.instance().releaseModel(oldValue);
+            llmModelHasChanged(newValue);
+        });
         SettingsManager.instance().selectedLlmModelCardProperty().addListener((observable, oldValue, newValue) -> llmModelCardChangedInSettings());
         llmModelCardChangedInSettings();
     }
@@ -0,0 +1,237 @@
+package de.vrauchhaupt.chatbotfx.manager;
+
+import de.vrauchhaupt.chatbotfx.IMessaging;
+import de.vrauchhaupt.chatbotfx.model.ControlledThread;
+import io.github.ollama4j.Ollama;
+import io.github.ollama4j.models.ps.ModelProcessesResult;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The ollama servers requests can be sent to. Every request leases a host:
+ * <ol>
+ *     <li>only healthy hosts are used. A host failing with an io error is left out for {@link #UNHEALTHY_MILLIS}, if
+ *     all hosts are unhealthy, all of them are tried again.</li>
+ *     <li>hosts having the model already loaded (by <code>/api/ps</code> or an earlier request) are preferred, so no
+ *     model is loaded twice and the prompt cache of the host is used.</li>
+ *     <li>of these the one with the fewest requests in flight is taken, on a tie the one, which served the model
+ *     last.</li>
+ * </ol>
+ * The loaded models and the health of the hosts are asked by a background thread, leasing a host only uses what is
+ * known, so a slow or dead host does not delay a request. A request failing on an unreachable host can be given to
+ * another host with {@link #acquireOther(Lease)}.
+ * <p>
+ * The pool does not depend on the settings, so it can be pointed to any list of servers, e.g. local stand-ins.
+ */
+public final class OllamaHostPool implements IMessaging {
+
+    private static final long UNHEALTHY_MILLIS = 30_000L;
+    private static final long PS_REFRESH_MILLIS = 10_000L;
+    private static final long PROBE_TIMEOUT_SECONDS = 2L;
+
+    private final List<Host> hosts;
+    private final Map<String, Host> lastHostOfModel = new ConcurrentHashMap<>();
+    private final ControlledThread refreshThread;
+
+    public OllamaHostPool(List<String> hostUrls, long requestTimeoutSeconds) {
+        if (hostUrls.isEmpty())
+            throw new IllegalArgumentException("At least one ollama host is needed");
+        List<Host> tmpHosts = new ArrayList<>(hostUrls.size());
+        for (String hostUrl : hostUrls)
+            tmpHosts.add(new Host(hostUrl, requestTimeoutSeconds));
+        hosts = List.copyOf(tmpHosts);
+        refreshThread = hosts.size() == 1 ? null :
+                ThreadManager.instance().startEndlessThread("Ollama Host Refresh", this::refreshHosts);
+    }
+
+    private void refreshHosts(ControlledThread thread) {
+        hosts.forEach(Host::refreshLoadedModels);
+        thread.wakeUpAfter(PS_REFRESH_MILLIS);
+    }
+
+    /**
+     * Stops asking the hosts in the background.
+     */
+    public void close() {
+        if (refreshThread != null)
+            refreshThread.stopThread();
+    }
+
+    /**
+     * @return the client of the first host, which is used for everything not routed by model, like listing models
+     */
+    public Ollama primary() {
+        return hosts.getFirst().ollama;
+    }
+
+    public List<Ollama> all() {
+        return hosts.stream().map(host -> host.ollama).toList();
+    }
+
+    /**
+     * @param model the model the request is going to use, may be null
+     * @return the lease of the best host for the model, which must be closed after the request
+     */
+    public Lease acquire(String model) {
+        if (hosts.size() == 1)
+            return new Lease(hosts.getFirst(), model);
+
+        long now = System.currentTimeMillis();
+        List<Host> candidates = hosts.stream().filter(host -> host.isHealthy(now)).toList();
+        if (candidates.isEmpty())
+            candidates = hosts;
+        return new Lease(best(candidates, model), model);
+    }
+
+    /**
+     * @param failed the lease of a request, which failed, because its host could not be reached
+     * @return the lease of another healthy host for the same model, null, if there is none
+     */
+    public Lease acquireOther(Lease failed) {
+        long now = System.currentTimeMillis();
+        List<Host> candidates = hosts.stream()
+                .filter(host -> host != failed.host && host.isHealthy(now))
+                .toList();
+        if (candidates.isEmpty())
+            return null;
+        return new Lease(best(candidates, failed.model), failed.model);
+    }
+
+    private Host best(List<Host> candidates, String model) {
+        if (model != null) {
+            List<Host> withModel = candidates.stream().filter(host -> host.loadedModels.contains(modelName(model))).toList();
+            if (!withModel.isEmpty())
+                candidates = withModel;
+        }
+        Host lastHost = model == null ? null : lastHostOfModel.get(model);
+        Host best = null;
+        for (Host candidate : candidates) {
+            if (best == null
+                    || candidate.inFlight.get() < best.inFlight.get()
+                    || (candidate.inFlight.get() == best.inFlight.get() && candidate == lastHost))
+                best = candidate;
+        }
+        return best;
+    }
+
+    /**
+     * @return the model name with its tag, ollama lists models without a tag as "latest"
+     */
+    private static String modelName(String model) {
+        return model.contains(":") ? model : model + ":latest";
+    }
+
+    private static boolean isConnectionProblem(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof IOException)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * One request on one host. Closing the lease ends the request.
+     */
+    public class Lease implements AutoCloseable {
+        private final Host host;
+        private final String model;
+        private boolean closed = false;
+
+        private Lease(Host host, String model) {
+            this.host = host;
+            this.model = model;
+            host.inFlight.incrementAndGet();
+        }
+
+        public Ollama ollama() {
+            return host.ollama;
+        }
+
+        public String getHostUrl() {
+            return host.url;
+        }
+
+        /**
+         * The request was answered, so the host has the model loaded now.
+         */
+        public void succeeded() {
+            host.unhealthyUntil = 0;
+            if (model != null) {
+                host.loadedModels.add(modelName(model));
+                lastHostOfModel.put(model, host);
+            }
+        }
+
+        /**
+         * Takes the host out of the pool for a while, if the request failed, because the host could not be reached.
+         *
+         * @return true, if the host could not be reached, so the request may be tried on another host
+         */
+        public boolean failed(Exception e) {
+            if (Thread.currentThread().isInterrupted() || !isConnectionProblem(e))
+                return false;
+            host.markUnhealthy();
+            if (model != null)
+                lastHostOfModel.remove(model, host);
+            return true;
+        }
+
+        @Override
+        public void close() {
+            if (closed)
+                return;
+            closed = true;
+            host.inFlight.decrementAndGet();
+        }
+    }
+
+    private class Host {
+        private final String url;
+        private final Ollama ollama;
+        private final Ollama probe;
+        private final AtomicInteger inFlight = new AtomicInteger(0);
+        private final Set<String> loadedModels = ConcurrentHashMap.newKeySet();
+        private volatile long unhealthyUntil = 0;
+
+        private Host(String url, long requestTimeoutSeconds) {
+            this.url = url;
+            ollama = new Ollama(url);
+            ollama.setMetricsEnabled(false);
+            ollama.setRequestTimeoutSeconds(requestTimeoutSeconds);
+            probe = new Ollama(url);
+            probe.setMetricsEnabled(false);
+            probe.setRequestTimeoutSeconds(PROBE_TIMEOUT_SECONDS);
+        }
+
+        private boolean isHealthy(long now) {
+            return unhealthyUntil <= now;
+        }
+
+        private void markUnhealthy() {
+            unhealthyUntil = System.currentTimeMillis() + UNHEALTHY_MILLIS;
+            loadedModels.clear();
+            logLn("Ollama host '" + url + "' is not reachable, leaving it out for " + (UNHEALTHY_MILLIS / 1000) + " sec");
+        }
+
+        private void refreshLoadedModels() {
+            try {
+                ModelProcessesResult ps = probe.ps();
+                Set<String> models = new HashSet<>();
+                if (ps != null && ps.getModels() != null) {
+                    for (ModelProcessesResult.ModelProcess process : ps.getModels())
+                        models.add(modelName(process.getName()));
+                }
+                loadedModels.retainAll(models);
+                loadedModels.addAll(models);
+                // answering again brings the host back before its time out ends
+                unhealthyUntil = 0;
+            } catch (Exception e) {
+                if (isConnectionProblem(e) && isHealthy(System.currentTimeMillis()))
+                    markUnhealthy();
+            }
+        }
+    }
+}
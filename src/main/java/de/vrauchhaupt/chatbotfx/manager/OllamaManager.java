@@ -2,9 +2,11 @@ package de.vrauchhaupt.chatbotfx.manager;
 
 import de.vrauchhaupt.chatbotfx.ChatBot;
 import de.vrauchhaupt.chatbotfx.helper.StringHelper;
+import de.vrauchhaupt.chatbotfx.model.ChatPromptLayout;
 import de.vrauchhaupt.chatbotfx.model.ChatViewModel;
 import de.vrauchhaupt.chatbotfx.model.IndexedOllamaChatMessage;
 import de.vrauchhaupt.chatbotfx.model.LlmModelCardJson;
+import de.vrauchhaupt.chatbotfx.model.SummaryFold;
 import io.github.ollama4j.Ollama;
 import io.github.ollama4j.exceptions.OllamaException;
 import io.github.ollama4j.models.chat.*;
@@ -21,20 +23,27 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 public class OllamaManager extends AbstractManager {
 
     private static final long REQUEST_TIMEOUT_SECONDS = 360L;
+    private static final long CANCELLED_TURN_JOIN_MILLIS = 2000L;
     private static final boolean VERBOSE = false;
     private static OllamaManager INSTANCE;
     private final BooleanProperty working = new SimpleBooleanProperty(false);
+    private final Object hostPoolLock = new Object();
+    private final ChatPromptLayout promptLayout = new ChatPromptLayout();
+    private final SummarizationScheduler summarizationScheduler = new SummarizationScheduler();
+    private OllamaHostPool hostPool = null;
     private Thread currentLoadingThread = null;
-    private Thread currentAskingThread = null;
-
+    private volatile Thread currentAskingThread = null;
+    
     private OllamaManager() {
-
+        SettingsManager.instance().ollamaHostProperty().addListener((observable, oldValue, newValue) -> dropHostPool());
+        SettingsManager.instance().additionalOllamaHostsProperty().addListener((observable, oldValue, newValue) -> dropHostPool());
     }
 
     public static OllamaManager instance() {
@@ -44,26 +53,50 @@ public class OllamaManager extends AbstractManager {
     }
 
     private static void inheritIO(final InputStream src, final PrintStream dest) {
-        new Thread(new Runnable() {
-            public void run() {
-                Scanner sc = new Scanner(src);
-                while (sc.hasNextLine()) {
-                    dest.println(sc.nextLine());
-                }
+        ThreadManager.instance().startThread("Inherit IO", () -> {
+            Scanner sc = new Scanner(src);
+            while (sc.hasNextLine()) {
+                dest.println(sc.nextLine());
             }
-        }).start();
+        }, null);
     }
 
-    public Ollama newOllamaApi() {
-        Ollama ollamaAPI = new Ollama(SettingsManager.instance().getOllamaHost());
-        ollamaAPI.setMetricsEnabled(false);
-        ollamaAPI.setRequestTimeoutSeconds(REQUEST_TIMEOUT_SECONDS);
-        return ollamaAPI;
+    private static String keepAliveOf(LlmModelCardJson model) {
+        if (model == null || model.getKeepAlive() == null || model.getKeepAlive().isBlank())
+            return LlmModelCardJson.DEFAULT_KEEP_ALIVE;
+        return model.getKeepAlive();
+    }
+
+    /**
+     * The pool of the configured ollama hosts. Its clients are created once and shared by all requests, a change of the
+     * hosts in the settings drops it, so the next call creates one for the new hosts.
+     */
+    public OllamaHostPool hostPool() {
+        synchronized (hostPoolLock) {
+            if (hostPool == null)
+                hostPool = new OllamaHostPool(SettingsManager.instance().getOllamaHosts(), REQUEST_TIMEOUT_SECONDS);
+            return hostPool;
+        }
+    }
+
+    /**
+     * @return the client for the configured ollama host, chats are routed over all hosts by {@link #chat}
+     */
+    public Ollama ollamaApi() {
+        return hostPool().primary();
+    }
+
+    private void dropHostPool() {
+        synchronized (hostPoolLock) {
+            if (hostPool != null)
+                hostPool.close();
+            hostPool = null;
+        }
     }
 
     public final boolean checkOllamaServerRunning() {
         try {
-            newOllamaApi().listModels();
+            ollamaApi().listModels();
             return true;
         } catch (Exception e) {
             logLn("Ollama is not obviously not running, because of " + e.getMessage());
@@ -76,7 +109,7 @@ public class OllamaManager extends AbstractManager {
         List<Model> models;
         try {
             working.set(true);
-            models = newOllamaApi().listModels();
+            models = ollamaApi().listModels();
         } catch (Exception e) {
             logLn("Could not list models from ollama server", e);
             models = new ArrayList<>();
@@ -93,7 +126,7 @@ public class OllamaManager extends AbstractManager {
     public void unload(String curModelToUnload) {
         try {
             working.set(true);
-            newOllamaApi().deleteModel(curModelToUnload, false);
+            ollamaApi().deleteModel(curModelToUnload, false);
         } catch (Exception e) {
             logLn("Could not delete model '" + curModelToUnload + "' from ollama server", e);
         } finally {
@@ -101,6 +134,24 @@ public class OllamaManager extends AbstractManager {
         }
     }
 
+    /**
+     * Evicts the model of the given model card from the memory of the ollama server. Used, when another model card
+     * is selected, because the keep alive of the model card would hold the model for much longer otherwise.
+     */
+    public void releaseModel(LlmModelCardJson modelCard) {
+        if (modelCard == null || modelCard.getLlmModel() == null || modelCard.getLlmModel().isEmpty())
+            return;
+        ThreadManager.instance().startThread("Releasing " + modelCard.getLlmModel(), () -> {
+            for (Ollama ollama : hostPool().all()) {
+                try {
+                    ollama.unloadModel(modelCard.getLlmModel());
+                } catch (Exception e) {
+                    logLn("Could not release model '" + modelCard.getLlmModel() + "' from the memory of the ollama server", e);
+                }
+            }
+        }, null);
+    }
+
     public void paintPicture(List<IndexedOllamaChatMessage> messages,
                              LlmModelCardJson model) {
         ArrayList<IndexedOllamaChatMessage> messagesToSummarize = new ArrayList<>(messages);
@@ -117,11 +168,16 @@ public class OllamaManager extends AbstractManager {
                 .collect(Collectors.toList());
         collect.add(new OllamaChatMessage(OllamaChatMessageRole.SYSTEM, "Create a LLM prompt about the story so far. It should be short and simple and describe one person out of this story."));
         OllamaChatRequest chatRequest = new OllamaChatRequest(model.getLlmModel(), false, collect)
-                .withOptions(options);
+                .withOptions(options)
+                .withKeepAlive(keepAliveOf(model));
         try {
             OllamaChatResult chatResult = chat(chatRequest, null);
             List<OllamaChatMessage> chatHistory = chatResult.getChatHistory();
             OllamaChatMessage pictureGenerationPrompt = chatHistory.getLast();
+            if (Thread.currentThread().isInterrupted()) {
+                logLn("Painting the picture was cancelled");
+                return;
+            }
             logLn("Painting the picture with the following command:\n" + pictureGenerationPrompt.getResponse());
             ChatBot.chatMainWindow.fileNewImageRendering(pictureGenerationPrompt.getResponse());
         } catch (Exception e) {
@@ -129,9 +185,13 @@ public class OllamaManager extends AbstractManager {
         }
     }
 
-    public void compressMessage(List<IndexedOllamaChatMessage> messages,
-                                LlmModelCardJson model) {
-        ArrayList<IndexedOllamaChatMessage> messagesToSummarize = new ArrayList<>(messages);
+    /**
+     * Folds the aged out messages of the given snapshot into the previous summary.
+     *
+     * @return the text of the new summary
+     */
+    public String summarize(SummaryFold summaryFold,
+                            LlmModelCardJson model) throws OllamaException {
         Options options = new OptionsBuilder()
                 .setTemperature(1.1f)
                 .setTopP(model.getTop_p())
@@ -140,23 +200,22 @@ public class OllamaManager extends AbstractManager {
                 .setRepeatLastN(64)
                 .build();
 
-        List<OllamaChatMessage> collect = messages.stream()
-                .map(IndexedOllamaChatMessage::getChatMessage)
-                .collect(Collectors.toList());
-        collect.add(new OllamaChatMessage(OllamaChatMessageRole.SYSTEM, "Summarize the history up to now in about 200 words."));
+        List<IndexedOllamaChatMessage> messages = new ArrayList<>();
+        if (summaryFold.getSystemPrompt() != null)
+            messages.add(summaryFold.getSystemPrompt());
+        messages.addAll(summaryFold.getReplacedMessages());
+        // same layout as the chat, so the summary request can use the prompt cache of the chat
+        List<OllamaChatMessage> collect = promptLayout.layout(messages);
+        collect.add(new OllamaChatMessage(OllamaChatMessageRole.SYSTEM, summaryFold.getPreviousSummary() == null
+                ? "Summarize the history up to now in about 200 words."
+                : "Update the summary of the story so far with the messages after it. Write about 200 words."));
         OllamaChatRequest chatRequest = new OllamaChatRequest(model.getLlmModel(), false, collect)
-                .withOptions(options);
-        try {
-            OllamaChatResult chatResult = newOllamaApi().chat(chatRequest, null);
-            List<OllamaChatMessage> chatHistory = chatResult.getChatHistory();
-            OllamaChatMessage sumarization = chatHistory.getLast();
-            sumarization.setRole(OllamaChatMessageRole.SYSTEM);
-            logLn("Summarized to the following:\n" + sumarization);
-            messagesToSummarize.removeFirst(); // first message is always the intro
-            ChatViewModel.instance().replaceChatHistory(messagesToSummarize, sumarization);
-        } catch (Exception e) {
-            logLn("Could not summarize ", e);
-        }
+                .withOptions(options)
+                .withKeepAlive(keepAliveOf(model));
+        String returnValue = chat(chatRequest, null).getResponseModel().getMessage().getResponse().trim();
+        if (returnValue.startsWith(ChatPromptLayout.SUMMARY_PREFIX))
+            returnValue = returnValue.substring(ChatPromptLayout.SUMMARY_PREFIX.length());
+        return returnValue;
     }
 
     public void systemNoticeAndAsk(String systemNotice,
@@ -166,7 +225,9 @@ public class OllamaManager extends AbstractManager {
                                    ChatbotLlmStreamHandler streamHandler,
                                    Runnable onAskingFailure) {
 
-        if (currentAskingThread != null) {
+        TurnScope previousTurn = ThreadManager.instance().currentTurn();
+        Thread previousAskingThread = currentAskingThread;
+        if (previousAskingThread != null && (previousTurn == null || !previousTurn.isCancelled())) {
             logLn("Asking currently in action");
             onAskingFailure.run();
         }
@@ -180,63 +241,92 @@ public class OllamaManager extends AbstractManager {
                 .build();
 
 
-        List<OllamaChatMessage> messagesToSend = messages.stream()
-                .map(IndexedOllamaChatMessage::getChatMessage)
-                .collect(Collectors.toList());
-        OllamaChatRequest ollamaChatRequestModel = new OllamaChatRequest(model.getLlmModel(), false, messagesToSend)
-                .withOptions(options);
-
+        List<IndexedOllamaChatMessage> history = new ArrayList<>(messages);
         if (systemNotice != null && !systemNotice.trim().isEmpty()) {
-            ChatViewModel.instance().appendSystemOrPrompt(OllamaChatMessageRole.SYSTEM, systemNotice);
+            history.add(ChatViewModel.instance().appendSystemOrPrompt(OllamaChatMessageRole.SYSTEM, systemNotice));
             Path modelCardsDirectory = SettingsManager.instance().getPathToLlmModelCards();
             Path path = modelCardsDirectory.resolve(LlmModelCardManager.instance().getSelectedLlModelCard().getModelCardName() + ".png");
             if (Files.exists(path) && messages.isEmpty()) {
                 logLn("Attaching image '" + path + "' to LLM message.");
                 // @TODO .. add the correct way to add the image
-                ollamaChatRequestModel.withMessage(OllamaChatMessageRole.SYSTEM, systemNotice);
-            } else {
-                ollamaChatRequestModel.withMessage(OllamaChatMessageRole.SYSTEM, systemNotice);
             }
         }
 
-
         if (message != null && !message.trim().isEmpty()) {
-            ChatViewModel.instance().appendSystemOrPrompt(OllamaChatMessageRole.USER, message);
-            ollamaChatRequestModel.withMessage(OllamaChatMessageRole.USER, message);
+            history.add(ChatViewModel.instance().appendSystemOrPrompt(OllamaChatMessageRole.USER, message));
         }
+        List<OllamaChatMessage> messagesToSend = promptLayout.layout(history);
+        OllamaChatRequest ollamaChatRequestModel = new OllamaChatRequest(model.getLlmModel(), false, messagesToSend)
+                .withOptions(options)
+                .withKeepAlive(keepAliveOf(model));
         working.set(true);
         int newChatMessageId = IndexedOllamaChatMessage.newId();
-        streamHandler.setChatMessageIndex(newChatMessageId);
-        currentAskingThread = ThreadManager.instance().startThread("Asking Ollama Thread", () -> {
+        TurnScope turn = ThreadManager.instance().openTurn();
+        // the answer is going to be the next message, so it is known now whether it gets a picture
+        boolean paintDue = isPaintDue(history.size() + 1);
+        boolean paintSpeculatively = paintDue && model.isSpeculativeImagePrompt();
+        List<IndexedOllamaChatMessage> speculativePaintHistory = List.copyOf(history.subList(Math.max(0, history.size() - 4), history.size()));
+        AtomicBoolean speculativePaintStarted = new AtomicBoolean(false);
+        currentAskingThread = turn.fork("Asking Ollama Thread", () -> {
                     try {
-                        OllamaChatResult chatResult = chat(ollamaChatRequestModel, null);
+                        // a cancelled turn closes its http stream with the next chunk, give it the time to finish
+                        if (previousAskingThread != null && previousAskingThread.isAlive())
+                            previousAskingThread.join(CANCELLED_TURN_JOIN_MILLIS);
+                        streamHandler.setChatMessageIndex(newChatMessageId);
+                        // streaming: the handler gets every chunk as soon as ollama produced it. After a cancel, the
+                        // next chunk throws, which closes the http stream and makes ollama stop generating.
+                        OllamaChatResult chatResult = chat(ollamaChatRequestModel, chunk -> {
+                            turn.checkNotCancelled();
+                            // the first chunk means the prompt is evaluated, the picture prompt can run on a second
+                            // slot of ollama while the answer streams
+                            if (paintSpeculatively && speculativePaintStarted.compareAndSet(false, true)) {
+                                turn.fork("Paint a Picture",
+                                        () -> paintPicture(speculativePaintHistory, model),
+                                        null);
+                            }
+                            streamHandler.accept(chunk);
+                        });
+                        streamHandler.inputHasStopped();
                         if (chatResult.getResponseModel().getError() != null) {
                             throw new RuntimeException("Error code " + chatResult.getResponseModel().getError() + " was given!");
                         }
-                        streamHandler.accept(chatResult.getResponseModel());
-                        streamHandler.inputHasStopped();
+                        if (turn.isCancelled())
+                            return;
+                        // the raw answer continues the prompt exactly as ollama has it in its cache
+                        ChatViewModel.instance().completeAssistant(newChatMessageId,
+                                chatResult.getResponseModel().getMessage().getResponse(),
+                                chatResult.getResponseModel().getEvalCount());
+                        promptLayout.reportCacheUsage(model.getLlmModel(), messagesToSend, chatResult.getResponseModel());
                         List<IndexedOllamaChatMessage> fullHistory = ChatViewModel.instance().getFullHistory();
-                        int messagesToStripForLLM = SettingsManager.instance().getMessagesToStripForLLM();
-                        if (fullHistory.size() > messagesToStripForLLM + 7) {
-                            ThreadManager.instance().startThread("Summarize LLM Messages",
-                                    () -> compressMessage(fullHistory.subList(0, messagesToStripForLLM), model),
-                                    null);
-                        }
-                        if (StableDiffusionManager.instance().isWebUiWasRunningAtStart() &&
-                                fullHistory.size() > 4 &&
-                                (fullHistory.size() % 5 == 0 || (fullHistory.size() & 6) == 0)) {
-                            ThreadManager.instance().startThread("Paint a Picture",
-                                    () -> paintPicture(fullHistory.subList(fullHistory.size() - 4, fullHistory.size()), model),
+                        summarizationScheduler.schedule(model);
+                        if (paintDue && !speculativePaintStarted.get()) {
+                            turn.fork("Paint a Picture",
+                                    () -> paintPicture(fullHistory.subList(Math.max(0, fullHistory.size() - 4), fullHistory.size()), model),
                                     null);
                         }
                     } catch (Exception e) {
-                        onAskingFailure.run();
-                        logLn("Could not ask '" + message + "' on model '" + model + "'", e);
+                        if (turn.isCancelled()) {
+                            logLn("Asking '" + message + "' was cancelled");
+                        } else {
+                            onAskingFailure.run();
+                            logLn("Could not ask '" + message + "' on model '" + model + "'", e);
+                        }
                     } finally {
                         working.set(false);
                     }
                 },
-                x -> currentAskingThread = null);
+                x -> {
+                    if (currentAskingThread == x)
+                        currentAskingThread = null;
+                    reportWorkState();
+                });
+        reportWorkState();
+    }
+
+    private static boolean isPaintDue(int historySize) {
+        return StableDiffusionManager.instance().isWebUiWasRunningAtStart() &&
+                historySize > 4 &&
+                (historySize % 5 == 0 || (historySize & 6) == 0);
     }
 
     public void loadModelSynchronous(LlmModelCardJson llmModelCard) {
@@ -324,7 +414,11 @@ public class OllamaManager extends AbstractManager {
                             working.set(false);
                         }
                     },
-                    x -> currentLoadingThread = null);
+                    x -> {
+                        currentLoadingThread = null;
+                        reportWorkState();
+                    });
+            reportWorkState();
         } catch (Exception e) {
             logLn("Could not create model by model file '" + llmModelCard.getLlmModel() + "'", e);
         }
@@ -335,6 +429,14 @@ public class OllamaManager extends AbstractManager {
         return working.get() || currentAskingThread != null || currentLoadingThread != null;
     }
 
+    /**
+     * @return true, while the chat is summarized in the background. Not part of {@link #isWorking()}, so the user can
+     * go on chatting meanwhile.
+     */
+    public boolean isSummarizing() {
+        return summarizationScheduler.isWorking();
+    }
+
     public void cancelWork() {
         if (currentLoadingThread != null) {
             try {
@@ -343,11 +445,13 @@ public class OllamaManager extends AbstractManager {
                 logLn("Could not interrupt loading thread", e);
             }
         }
-        if (currentAskingThread != null) {
+        summarizationScheduler.cancel();
+        TurnScope turn = ThreadManager.instance().currentTurn();
+        if (turn != null) {
             try {
-                currentAskingThread.interrupt();
+                turn.cancel();
             } catch (Exception e) {
-                logLn("Could not interrupt loading asking", e);
+                logLn("Could not cancel asking", e);
             }
         }
     }
@@ -378,8 +482,36 @@ public class OllamaManager extends AbstractManager {
             e.printStackTrace();
         }
 
-        Ollama ollamaAPI = newOllamaApi();
-        OllamaChatResult returnValue = ollamaAPI.chat(request, tokenHandler);
+        OllamaChatResult returnValue;
+        OllamaHostPool pool = hostPool();
+        AtomicBoolean streamed = new AtomicBoolean(false);
+        OllamaChatTokenHandler streamingHandler = tokenHandler == null ? null : chunk -> {
+            streamed.set(true);
+            tokenHandler.accept(chunk);
+        };
+        OllamaHostPool.Lease lease = pool.acquire(request.getModel());
+        try {
+            boolean failedOver = false;
+            while (true) {
+                try {
+                    returnValue = lease.ollama().chat(request, streamingHandler);
+                    lease.succeeded();
+                    break;
+                } catch (OllamaException | RuntimeException e) {
+                    boolean unreachable = lease.failed(e);
+                    // asked once more on another host, as long as no part of the answer was handed on yet
+                    OllamaHostPool.Lease other = unreachable && !failedOver && !streamed.get() ? pool.acquireOther(lease) : null;
+                    if (other == null)
+                        throw e;
+                    logLn("Asking ollama host '" + other.getHostUrl() + "' instead of '" + lease.getHostUrl() + "'");
+                    lease.close();
+                    lease = other;
+                    failedOver = true;
+                }
+            }
+        } finally {
+            lease.close();
+        }
 
         if (debugFile != null) {
             try (OutputStream outputStream = Files.newOutputStream(debugFile, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
@@ -395,6 +527,4 @@ public class OllamaManager extends AbstractManager {
         }
         return returnValue;
     }
-
-
-}
\ No newline at end of file
+}
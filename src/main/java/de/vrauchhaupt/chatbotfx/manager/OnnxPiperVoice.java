@@ -0,0 +1,332 @@
+package de.vrauchhaupt.chatbotfx.manager;
+
+import ai.onnxruntime.OnnxTensor;
+import ai.onnxruntime.OrtEnvironment;
+import ai.onnxruntime.OrtException;
+import ai.onnxruntime.OrtSession;
+import com.fasterxml.jackson.databind.JsonNode;
+import de.vrauchhaupt.chatbotfx.IMessaging;
+import de.vrauchhaupt.chatbotfx.helper.JsonHelper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.FloatBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A piper voice model run by onnx runtime inside the application, without starting piper or piping samples between
+ * processes. The model is loaded once and runs on its own executor.
+ * <p>
+ * The text is turned into phonemes by the espeak-ng executable, like piper does with the espeak-ng library. espeak-ng
+ * prints one line of IPA phonemes per clause and drops the punctuation, so the punctuation of the text is put back at
+ * the end of the clauses, as the voices are trained with it. The phonemes are mapped to ids by the phoneme_id_map of
+ * the voice config.
+ * <p>
+ * The native run options and the session must not be freed while onnx runtime still works with them. A cancelled
+ * synthesis is told to terminate, and its options are closed only after the run has left onnx runtime. The session is
+ * closed only, when no run is live anymore.
+ */
+public final class OnnxPiperVoice implements IMessaging, AutoCloseable {
+
+    private static final String PAD = "_";
+    private static final String BOS = "^";
+    private static final String EOS = "$";
+    private static final short MAX_WAV_VALUE = Short.MAX_VALUE;
+    private static final Pattern CLAUSE_PUNCTUATION = Pattern.compile("[.,;:!?]");
+
+    private final OrtEnvironment environment = OrtEnvironment.getEnvironment();
+    private final OrtSession session;
+    private final ExecutorService executor;
+    private final String espeakCommand;
+    private final String espeakVoice;
+    private final Map<String, long[]> phonemeIds = new HashMap<>();
+    private final float[] scales;
+    private final boolean multiSpeaker;
+    private final Set<Run> liveRuns = ConcurrentHashMap.newKeySet();
+
+    public OnnxPiperVoice(Path model, Path config, String espeakCommand, int threads) throws IOException {
+        if (threads < 1)
+            throw new IllegalArgumentException("An onnx voice needs at least one thread");
+        this.espeakCommand = espeakCommand;
+        JsonNode configNode = JsonHelper.objectMapper().readTree(config.toFile());
+        if (!"espeak".equals(configNode.path("phoneme_type").asText("espeak")))
+            throw new IOException("Voice '" + model.getFileName() + "' does not use espeak phonemes");
+        espeakVoice = configNode.path("espeak").path("voice").asText("en-us");
+        configNode.path("phoneme_id_map").properties().forEach(entry -> {
+            long[] ids = new long[entry.getValue().size()];
+            for (int i = 0; i < ids.length; i++)
+                ids[i] = entry.getValue().get(i).asLong();
+            phonemeIds.put(entry.getKey(), ids);
+        });
+        if (!phonemeIds.containsKey(PAD) || !phonemeIds.containsKey(BOS) || !phonemeIds.containsKey(EOS))
+            throw new IOException("Voice config '" + config + "' has no phoneme_id_map with pad, start and end");
+        JsonNode inference = configNode.path("inference");
+        scales = new float[]{
+                (float) inference.path("noise_scale").asDouble(0.667),
+                (float) inference.path("length_scale").asDouble(1.0),
+                (float) inference.path("noise_w").asDouble(0.8)};
+
+        try (OrtSession.SessionOptions options = new OrtSession.SessionOptions()) {
+            // the syntheses run side by side, so they share the cores instead of each taking all of them
+            options.setIntraOpNumThreads(Math.max(1, Runtime.getRuntime().availableProcessors() / 2 / threads));
+            options.setOptimizationLevel(OrtSession.SessionOptions.OptLevel.ALL_OPT);
+            session = environment.createSession(model.toAbsolutePath().toString(), options);
+        } catch (OrtException e) {
+            throw new IOException("Could not load voice model '" + model + "' into onnx runtime", e);
+        }
+        multiSpeaker = session.getInputNames().contains("sid");
+        AtomicInteger threadIndex = new AtomicInteger(0);
+        executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "Onnx TTS " + threadIndex.incrementAndGet());
+            thread.setDaemon(true);
+            thread.setUncaughtExceptionHandler(ThreadManager.instance());
+            return thread;
+        });
+        logLn("Loaded voice '" + model.getFileName() + "' into onnx runtime with espeak voice '" + espeakVoice + "'");
+    }
+
+    /**
+     * @param onCancellable gets the action stopping the synthesis, once it is running
+     * @return the pcm samples of the spoken text, 16 bit mono in the sample rate of the voice model
+     */
+    public byte[] synthesize(String text, Consumer<Runnable> onCancellable) throws IOException, InterruptedException {
+        Run run = new Run();
+        liveRuns.add(run);
+        try {
+            Future<byte[]> future = executor.submit(() -> {
+                if (!run.start())
+                    return null;
+                try {
+                    String phonemes = phonemize(text, onCancellable);
+                    return infer(phonemes, run.options);
+                } finally {
+                    run.finished.countDown();
+                }
+            });
+            onCancellable.accept(() -> {
+                future.cancel(true);
+                run.terminate();
+            });
+            return future.get();
+        } catch (RejectedExecutionException e) {
+            throw new IOException("Onnx voice is closed", e);
+        } catch (InterruptedException e) {
+            run.terminate();
+            throw e;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException ioException)
+                throw ioException;
+            throw new IOException("Could not synthesize '" + text + "' with onnx runtime", e.getCause());
+        } finally {
+            // a cancelled or interrupted wait leaves here, while the run may still be inside onnx runtime
+            run.awaitFinishedAndClose();
+            liveRuns.remove(run);
+        }
+    }
+
+    private String phonemize(String text, Consumer<Runnable> onCancellable) throws IOException, InterruptedException {
+        ProcessBuilder processBuilder = new ProcessBuilder(espeakCommand, "-q", "--ipa", "-v", espeakVoice);
+        processBuilder.redirectError(ProcessBuilder.Redirect.DISCARD);
+        Process espeakProcess = processBuilder.start();
+        onCancellable.accept(espeakProcess::destroyForcibly);
+        try (OutputStream outputStream = espeakProcess.getOutputStream()) {
+            outputStream.write(text.getBytes(StandardCharsets.UTF_8));
+        }
+        String output;
+        try (InputStream inputStream = espeakProcess.getInputStream()) {
+            output = new String(inputStream.readAllBytes(), StandardCharsets.UTF_8);
+        }
+        if (espeakProcess.waitFor() != 0)
+            throw new IOException("espeak-ng ended with " + espeakProcess.exitValue() + " for '" + text + "'");
+
+        List<String> clauses = output.lines().map(String::trim).filter(x -> !x.isEmpty()).toList();
+        List<String> punctuation = new ArrayList<>();
+        Matcher matcher = CLAUSE_PUNCTUATION.matcher(text);
+        while (matcher.find())
+            punctuation.add(matcher.group());
+        StringBuilder phonemes = new StringBuilder();
+        for (int i = 0; i < clauses.size(); i++) {
+            if (i > 0)
+                phonemes.append(' ');
+            phonemes.append(clauses.get(i));
+            // without one clause per punctuation mark, only the end of the sentence gets its mark
+            if (clauses.size() == punctuation.size() || clauses.size() == punctuation.size() + 1) {
+                if (i < punctuation.size())
+                    phonemes.append(punctuation.get(i));
+            } else if (i == clauses.size() - 1 && !punctuation.isEmpty()) {
+                phonemes.append(punctuation.getLast());
+            }
+        }
+        return phonemes.toString();
+    }
+
+    private byte[] infer(String phonemes, OrtSession.RunOptions runOptions) throws IOException {
+        long[] ids = toIds(phonemes);
+        Map<String, OnnxTensor> inputs = new HashMap<>();
+        try {
+            inputs.put("input", OnnxTensor.createTensor(environment, new long[][]{ids}));
+            inputs.put("input_lengths", OnnxTensor.createTensor(environment, new long[]{ids.length}));
+            inputs.put("scales", OnnxTensor.createTensor(environment, scales));
+            if (multiSpeaker)
+                inputs.put("sid", OnnxTensor.createTensor(environment, new long[]{0}));
+            try (OrtSession.Result result = session.run(inputs, runOptions)) {
+                return toPcm(((OnnxTensor) result.get(0)).getFloatBuffer());
+            }
+        } catch (OrtException e) {
+            throw new IOException("Onnx runtime could not synthesize the phonemes '" + phonemes + "'", e);
+        } finally {
+            inputs.values().forEach(OnnxTensor::close);
+        }
+    }
+
+    /**
+     * @return the ids of the phonemes between start and end, with a pad after each of them, as piper does it
+     */
+    private long[] toIds(String phonemes) {
+        List<long[]> parts = new ArrayList<>();
+        long[] pad = phonemeIds.get(PAD);
+        parts.add(phonemeIds.get(BOS));
+        parts.add(pad);
+        phonemes.codePoints().forEach(codePoint -> {
+            long[] ids = phonemeIds.get(new String(Character.toChars(codePoint)));
+            if (ids == null)
+                return;
+            parts.add(ids);
+            parts.add(pad);
+        });
+        parts.add(phonemeIds.get(EOS));
+        long[] returnValue = new long[parts.stream().mapToInt(x -> x.length).sum()];
+        int index = 0;
+        for (long[] part : parts) {
+            System.arraycopy(part, 0, returnValue, index, part.length);
+            index += part.length;
+        }
+        return returnValue;
+    }
+
+    /**
+     * @return the samples as 16 bit little endian, scaled to the full range like piper does it
+     */
+    private static byte[] toPcm(FloatBuffer audio) {
+        float maxAudioValue = 0.01f;
+        for (int i = 0; i < audio.limit(); i++)
+            maxAudioValue = Math.max(maxAudioValue, Math.abs(audio.get(i)));
+        float scale = MAX_WAV_VALUE / maxAudioValue;
+        byte[] returnValue = new byte[audio.limit() * 2];
+        for (int i = 0; i < audio.limit(); i++) {
+            int sample = Math.clamp(Math.round(audio.get(i) * scale), -MAX_WAV_VALUE, MAX_WAV_VALUE);
+            returnValue[2 * i] = (byte) sample;
+            returnValue[2 * i + 1] = (byte) (sample >> 8);
+        }
+        return returnValue;
+    }
+
+    @Override
+    public void close() {
+        liveRuns.forEach(Run::terminate);
+        executor.shutdownNow();
+        try {
+            if (executor.awaitTermination(5, TimeUnit.SECONDS)) {
+                closeSession();
+                return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // a run still working with the session must not find it freed
+        logLn("Onnx syntheses are still running, the voice is closed when they have ended");
+        ThreadManager.instance().startThread("Close onnx voice", () -> {
+            try {
+                executor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+                closeSession();
+            } catch (InterruptedException e) {
+                logLn("Gave up waiting for the onnx syntheses, the voice stays loaded");
+            }
+        }, null);
+    }
+
+    private void closeSession() {
+        try {
+            session.close();
+        } catch (OrtException e) {
+            logLn("Could not close onnx voice", e);
+        }
+    }
+
+    /**
+     * One synthesis and its native run options. The options are closed by the thread waiting for the synthesis, but
+     * only after the run has ended or, if it never started, can't start anymore.
+     */
+    private class Run {
+        private final OrtSession.RunOptions options;
+        private final AtomicBoolean started = new AtomicBoolean(false);
+        private final CountDownLatch finished = new CountDownLatch(1);
+        private boolean closed = false;
+
+        private Run() throws IOException {
+            try {
+                options = new OrtSession.RunOptions();
+            } catch (OrtException e) {
+                throw new IOException("Could not create onnx run options", e);
+            }
+        }
+
+        /**
+         * @return false, if the run was given up before it started
+         */
+        private boolean start() {
+            return started.compareAndSet(false, true);
+        }
+
+        private synchronized void terminate() {
+            if (closed)
+                return;
+            try {
+                options.setTerminate(true);
+            } catch (OrtException e) {
+                logLn("Could not stop onnx synthesis", e);
+            }
+        }
+
+        private void awaitFinishedAndClose() {
+            if (!started.compareAndSet(false, true)) {
+                boolean interrupted = false;
+                while (true) {
+                    try {
+                        finished.await();
+                        break;
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                        terminate();
+                    }
+                }
+                if (interrupted)
+                    Thread.currentThread().interrupt();
+            }
+            synchronized (this) {
+                closed = true;
+                options.close();
+            }
+        }
+    }
+}
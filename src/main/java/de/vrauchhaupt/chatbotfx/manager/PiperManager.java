@@ -1,5 +1,7 @@
 package de.vrauchhaupt.chatbotfx.manager;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import de.vrauchhaupt.chatbotfx.helper.JsonHelper;
 import de.vrauchhaupt.chatbotfx.model.ControlledThread;
 import de.vrauchhaupt.chatbotfx.model.LlmModelCardJson;
 import de.vrauchhaupt.chatbotfx.model.TtsSentence;
@@ -7,34 +9,106 @@ import javafx.collections.FXCollections;
 import javafx.collections.ObservableList;
 
 import javax.sound.sampled.AudioFormat;
-import javax.sound.sampled.AudioSystem;
-import javax.sound.sampled.SourceDataLine;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Queue;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Stream;
 
+/**
+ * Speaks the sentences of the answers. A sentence goes through a bounded pipeline: the LLM files it into the queue of
+ * sentences to synthesize, waiting while the queue is full, the dispatcher takes the sentences in order, hands them to
+ * the player, waiting while the queue of the player is full, and starts their synthesis, as soon as one of the
+ * synthesis slots is free. The player plays them in the same order.
+ */
 public class PiperManager extends AbstractManager {
+    private static final int DEFAULT_SAMPLE_RATE = 22050;
+    /**
+     * worker pools and onnx voices kept loaded, enough for the voice and its fallback
+     */
+    private static final int KEPT_VOICES = 2;
+    /**
+     * the fallback voice is used, when sentences wait longer than this for their synthesis
+     */
+    private static final double DOWNGRADE_LAG_MILLIS = 4000;
+    /**
+     * the voice of the model card is used again, when the lag is down to this
+     */
+    private static final double RECOVER_LAG_MILLIS = 1000;
+    private static final double LAG_SMOOTHING = 0.5;
+    private static final Path TTS_CACHE_DIRECTORY = Paths.get("tts_cache");
     private static PiperManager INSTANCE = null;
     private final AtomicBoolean isPlayingSound = new AtomicBoolean();
-    private final Queue<TtsSentence> queueOfTextsToProduce = new LinkedList<>();
-    private final Queue<TtsSentence> queueOfTextsToPlay = new LinkedList<>();
+    /**
+     * bounded by {@link SettingsManager#getTtsQueueCapacity()} at the start
+     */
+    private final BlockingQueue<TtsSentence> queueOfTextsToProduce;
+    /**
+     * bounded like {@link #queueOfTextsToProduce}, so the samples of only a few sentences wait for the player
+     */
+    private final BlockingQueue<TtsSentence> queueOfTextsToPlay;
     private final ObservableList<String> ttsModels = FXCollections.observableArrayList();
-    private final List<Thread> currentThreads = new LinkedList<>();
-    private boolean stopPlaying = false;
+    private final AtomicInteger runningSyntheses = new AtomicInteger(0);
+    private final Set<SynthesisJob> liveSyntheses = ConcurrentHashMap.newKeySet();
+    private final TtsPipelineMetrics pipelineMetrics;
+    private final ControlledThread generationThread;
+    private final ControlledThread playingThread;
+    private volatile Semaphore synthesisSlots;
+    private final Object workerPoolLock = new Object();
+    private volatile boolean stopPlaying = false;
+    private volatile TtsSentence currentlyPlaying = null;
+    /**
+     * the sentence the dispatcher holds, while it waits for a synthesis slot
+     */
+    private volatile TtsSentence currentlyDispatching = null;
+    private final AudioOutput audioOutput = new AudioOutput();
+    private final Map<Path, AudioFormat> audioFormats = new ConcurrentHashMap<>();
+    private final LinkedHashMap<List<String>, PiperWorkerPool> workerPools = new LinkedHashMap<>(4, 0.75f, true);
+    private final LinkedHashMap<String, OnnxPiperVoice> onnxVoices = new LinkedHashMap<>(4, 0.75f, true);
+    /**
+     * smoothed time from filing a sentence to its dispatch, only used by the dispatcher
+     */
+    private double smoothedLagMillis = 0;
+    private volatile boolean voiceDowngraded = false;
+    private final Object ttsAudioCacheLock = new Object();
+    private TtsAudioCache ttsAudioCache = null;
+    private boolean ttsAudioCacheFailed = false;
 
     public PiperManager() {
-        ThreadManager.instance().startEndlessThread("TTS Generation", this::generateTTS);
-        ThreadManager.instance().startEndlessThread("TTS Playing", this::playSounds);
+        queueOfTextsToProduce = new ArrayBlockingQueue<>(SettingsManager.instance().getTtsQueueCapacity());
+        queueOfTextsToPlay = new ArrayBlockingQueue<>(SettingsManager.instance().getTtsQueueCapacity());
+        pipelineMetrics = new TtsPipelineMetrics(queueOfTextsToProduce::size, queueOfTextsToPlay::size);
+        synthesisSlots = new Semaphore(SettingsManager.instance().getTtsSynthesisThreads());
+        generationThread = ThreadManager.instance().startEndlessThread("TTS Generation", this::generateTTS);
+        playingThread = ThreadManager.instance().startEndlessThread("TTS Playing", this::playSounds);
         SettingsManager.instance().pathToTtsModelFilesProperty().addListener((obs, oldv, newv) -> reloadTtsModels());
+        SettingsManager.instance().ttsWorkersProperty().addListener((obs, oldv, newv) -> closeWorkerPool());
+        SettingsManager.instance().ttsCacheMegabytesProperty().addListener((obs, oldv, newv) -> closeTtsAudioCache());
+        // running syntheses give their slot back to the semaphore they took it from
+        SettingsManager.instance().ttsSynthesisThreadsProperty().addListener((obs, oldv, newv) -> {
+            synthesisSlots = new Semaphore(newv.intValue());
+            closeOnnxVoice();
+        });
+        SettingsManager.instance().ttsInProcessProperty().addListener((obs, oldv, newv) -> closeOnnxVoice());
+        SettingsManager.instance().espeakCommandProperty().addListener((obs, oldv, newv) -> closeOnnxVoice());
         reloadTtsModels();
 
         try {
@@ -84,149 +158,628 @@ public class PiperManager extends AbstractManager {
     }
 
     private void playSounds(ControlledThread thread) {
-        while (!queueOfTextsToPlay.isEmpty() && !stopPlaying) {
+        boolean played = false;
+        TtsSentence sentenceToPlay;
+        while (!stopPlaying && (sentenceToPlay = queueOfTextsToPlay.poll()) != null) {
             isPlayingSound.set(true);
-            TtsSentence sentenceToPlay = queueOfTextsToPlay.poll();
-            if (sentenceToPlay == null)
-                continue;
+            played = true;
+            currentlyPlaying = sentenceToPlay;
             try (InputStream rawSoundIs = sentenceToPlay.getBytesAsInputStream()) {
-                AudioFormat audioFormat = new AudioFormat(23000, 16, 1, true, false);
-                SourceDataLine line = AudioSystem.getSourceDataLine(audioFormat);
-                line.open(audioFormat);
-                line.start();
-
                 byte[] buffer = new byte[1024];
                 int numBytesRead;
 
-                while ((numBytesRead = rawSoundIs.read(buffer)) != -1) {
-                    line.write(buffer, 0, numBytesRead);
-                    if ( stopPlaying)
+                // plays the samples as piper delivers them, the stream ends with the end of the sentence. The line is
+                // not drained, so the next sentence follows without a gap.
+                while (true) {
+                    // while waiting for piper, the sentences still in the line are heard and informed in time
+                    if (audioOutput.hasPendingSentences()
+                            && !sentenceToPlay.awaitSamples(Math.max(1, audioOutput.millisUntilNextSpoken()))) {
+                        audioOutput.informSpokenSentences();
+                        continue;
+                    }
+                    if ((numBytesRead = rawSoundIs.read(buffer)) == -1)
+                        break;
+                    audioOutput.write(sentenceToPlay.getAudioFormat(), buffer, 0, numBytesRead);
+                    if (stopPlaying) {
+                        sentenceToPlay.abort();
                         break;
+                    }
                 }
-                line.drain();
-                line.close();
-                sentenceToPlay.informSpoken();
+                audioOutput.sentenceWritten(sentenceToPlay);
             } catch (Exception e) {
                 throw new RuntimeException("Could not play sound for sentence '" + sentenceToPlay.getText() + "'", e);
             } finally {
+                currentlyPlaying = null;
                 isPlayingSound.set(false);
             }
         }
+        if (stopPlaying)
+            audioOutput.flush();
+        audioOutput.informSpokenSentences();
+        // the sentences still in the buffer of the line are informed, when they are heard
+        if (audioOutput.hasPendingSentences())
+            thread.wakeUpAfter(audioOutput.millisUntilAllSpoken());
         stopPlaying = false;
+        if (played && queueOfTextsToProduce.isEmpty() && queueOfTextsToPlay.isEmpty())
+            logLn(pipelineMetrics.summary());
+        reportWorkState();
+    }
+
+    public TtsPipelineMetrics getPipelineMetrics() {
+        return pipelineMetrics;
+    }
+
+    /**
+     * @return the format of the samples of the voice model, by the sample rate in its config
+     */
+    private AudioFormat audioFormatOf(Path ttsModelConfig) {
+        return audioFormats.computeIfAbsent(ttsModelConfig, path -> {
+            int sampleRate = DEFAULT_SAMPLE_RATE;
+            try {
+                JsonNode sampleRateNode = JsonHelper.objectMapper().readTree(path.toFile()).path("audio").path("sample_rate");
+                if (sampleRateNode.isInt())
+                    sampleRate = sampleRateNode.asInt();
+                else
+                    logLn("No sample rate in '" + path + "', using " + sampleRate);
+            } catch (IOException e) {
+                logLn("Could not read the sample rate from '" + path + "', using " + sampleRate, e);
+            }
+            return new AudioFormat(sampleRate, 16, 1, true, false);
+        });
     }
 
     public boolean checkPiperIsAvailable() {
-        return getPiperExe() != null;
+        return SettingsManager.instance().isTtsInProcess() || getPiperExe() != null;
     }
 
     public boolean checkTtsModelFilesExists() {
         return !ttsModels.isEmpty();
     }
 
-    private Path getPiperExe() {
+    public static Path getPiperExe() {
         Path pathToPiper = SettingsManager.instance().getPathToPiper();
         if (pathToPiper == null || !Files.isDirectory(pathToPiper))
             return null;
-        Path piperExe = pathToPiper.resolve("piper.exe");
-        if (Files.isRegularFile(piperExe))
-            return piperExe;
+        for (String piperExeName : List.of("piper.exe", "piper")) {
+            Path piperExe = pathToPiper.resolve(piperExeName);
+            if (Files.isRegularFile(piperExe))
+                return piperExe;
+        }
         return null;
     }
 
     public void cancelWork() {
-        queueOfTextsToProduce.clear();
-        queueOfTextsToPlay.clear();
+        // releases an LLM stream and the dispatcher waiting for room in the queues, the writers and the player waiting
+        // for samples and everyone waiting for the dropped sentences to be spoken
+        List<TtsSentence> droppedSentences = new ArrayList<>();
+        queueOfTextsToProduce.drainTo(droppedSentences);
+        queueOfTextsToPlay.drainTo(droppedSentences);
+        droppedSentences.forEach(TtsSentence::abort);
+        TtsSentence sentence = currentlyPlaying;
+        if (sentence != null)
+            sentence.abort();
+        sentence = currentlyDispatching;
+        if (sentence != null)
+            sentence.abort();
+        // kills the running piper processes, their partial samples are dropped with the aborted sentences
+        int cancelledSyntheses = 0;
+        for (SynthesisJob job : liveSyntheses) {
+            job.cancel();
+            cancelledSyntheses++;
+        }
+        if (cancelledSyntheses > 0)
+            logLn("Cancelled " + cancelledSyntheses + " running syntheses");
         stopPlaying = true;
+        playingThread.signal();
+    }
+
+    /**
+     * Removes asterisks and stuttering like "I-I", which piper would speak letter by letter.
+     */
+    public static String prepareText(String text) {
+        String withoutAsterix = text.replace('*', ' ');
+        String cleanStutter = withoutAsterix.replaceAll("\\b(\\w)-\\1?(\\w+)", "$1$2");
+        if (!cleanStutter.equals(text))
+            System.out.println("Removed stuttering from \n'" + text + "'\nto\n'" + cleanStutter + "'");
+        return cleanStutter;
+    }
+
+    /**
+     * @return the worker pool for the command, or null, if sentences are synthesized by one piper process each
+     */
+    private PiperWorkerPool workerPoolFor(Path piperExe, String ttsModel, List<String> command, SynthesisJob job) {
+        synchronized (workerPoolLock) {
+            int ttsWorkers = SettingsManager.instance().getTtsWorkers();
+            if (ttsWorkers == 0)
+                return null;
+            PiperWorkerPool workerPool = workerPools.get(command);
+            if (workerPool != null) {
+                job.voice = workerPool;
+                return workerPool;
+            }
+            try {
+                Path ttsModelFiles = SettingsManager.instance().getPathToTtsModelFiles();
+                workerPool = new PiperWorkerPool(piperExe,
+                        SettingsManager.instance().getPathToPiper(),
+                        ttsModelFiles.resolve(ttsModel + ".onnx"),
+                        ttsModelFiles.resolve(ttsModel + ".onnx.json"),
+                        ttsWorkers);
+            } catch (IOException e) {
+                logLn("Could not create piper workers, starting one piper process per sentence", e);
+                return null;
+            }
+            job.voice = workerPool;
+            workerPools.put(command, workerPool);
+            closeLeastRecentlyUsed(workerPools);
+            return workerPool;
+        }
     }
 
+    /**
+     * @return the voice model loaded into onnx runtime, or null, if it could not be loaded
+     */
+    private OnnxPiperVoice onnxVoiceFor(String ttsModel, SynthesisJob job) {
+        synchronized (workerPoolLock) {
+            OnnxPiperVoice onnxVoice = onnxVoices.get(ttsModel);
+            if (onnxVoice != null) {
+                job.voice = onnxVoice;
+                return onnxVoice;
+            }
+            try {
+                Path ttsModelFiles = SettingsManager.instance().getPathToTtsModelFiles();
+                onnxVoice = new OnnxPiperVoice(ttsModelFiles.resolve(ttsModel + ".onnx"),
+                        ttsModelFiles.resolve(ttsModel + ".onnx.json"),
+                        SettingsManager.instance().getEspeakCommand(),
+                        SettingsManager.instance().getTtsSynthesisThreads());
+            } catch (Exception e) {
+                logLn("Could not load tts model '" + ttsModel + "' into onnx runtime", e);
+                return null;
+            }
+            job.voice = onnxVoice;
+            onnxVoices.put(ttsModel, onnxVoice);
+            closeLeastRecentlyUsed(onnxVoices);
+            return onnxVoice;
+        }
+    }
+
+    /**
+     * Closes the least recently used voices, which no synthesis uses anymore, until at most {@link #KEPT_VOICES} are
+     * left. Voices still in use are kept, they are closed after their last synthesis. To be called holding the
+     * {@link #workerPoolLock}.
+     */
+    private void closeLeastRecentlyUsed(LinkedHashMap<?, ? extends AutoCloseable> voices) {
+        Iterator<? extends AutoCloseable> leastRecentlyUsedFirst = voices.values().iterator();
+        while (voices.size() > KEPT_VOICES && leastRecentlyUsedFirst.hasNext()) {
+            AutoCloseable voice = leastRecentlyUsedFirst.next();
+            if (liveSyntheses.stream().anyMatch(job -> job.voice == voice))
+                continue;
+            try {
+                voice.close();
+            } catch (Exception e) {
+                logLn("Could not close tts voice", e);
+            }
+            leastRecentlyUsedFirst.remove();
+        }
+    }
+
+    /**
+     * Closes the voices kept beyond {@link #KEPT_VOICES}, because a synthesis still used them.
+     */
+    private void closeUnusedVoices() {
+        synchronized (workerPoolLock) {
+            closeLeastRecentlyUsed(workerPools);
+            closeLeastRecentlyUsed(onnxVoices);
+        }
+    }
+
+    private void closeOnnxVoice() {
+        synchronized (workerPoolLock) {
+            onnxVoices.values().forEach(OnnxPiperVoice::close);
+            onnxVoices.clear();
+        }
+    }
+
+    private void closeWorkerPool() {
+        synchronized (workerPoolLock) {
+            workerPools.values().forEach(PiperWorkerPool::close);
+            workerPools.clear();
+        }
+    }
+
+    /**
+     * @return the tts model of the selected model card, the first one, if it has none, or null, if there are no models.
+     * The fallback model of the card, while the synthesis falls behind.
+     */
+    private String currentTtsModel() {
+        if (ttsModels.isEmpty())
+            return null;
+        LlmModelCardJson selectedLlModelCard = LlmModelCardManager.instance().getSelectedLlModelCard();
+        if (selectedLlModelCard == null)
+            return ttsModels.getFirst();
+        if (voiceDowngraded && ttsModels.contains(selectedLlModelCard.getTtsFallbackModel()))
+            return selectedLlModelCard.getTtsFallbackModel();
+        if (!ttsModels.contains(selectedLlModelCard.getTtsModel()))
+            return ttsModels.getFirst();
+        return selectedLlModelCard.getTtsModel();
+    }
+
+    /**
+     * Switches to the fallback voice, when the sentences wait too long for their synthesis, and back, when the lag is
+     * small again. The gap between both thresholds keeps the voice from switching back and forth.
+     */
+    private void updateVoiceDowngrade(long lagNanos) {
+        double lagMillis = lagNanos / 1_000_000d;
+        smoothedLagMillis = LAG_SMOOTHING * lagMillis + (1 - LAG_SMOOTHING) * smoothedLagMillis;
+        if (!voiceDowngraded && smoothedLagMillis > DOWNGRADE_LAG_MILLIS && hasFallbackVoice()) {
+            voiceDowngraded = true;
+            logLn(String.format("TTS lags %.0f ms behind, switching to the fallback voice '%s'", smoothedLagMillis, currentTtsModel()));
+        } else if (voiceDowngraded && smoothedLagMillis < RECOVER_LAG_MILLIS) {
+            voiceDowngraded = false;
+            logLn(String.format("TTS caught up to %.0f ms, switching back to the voice '%s'", smoothedLagMillis, currentTtsModel()));
+        }
+    }
+
+    private boolean hasFallbackVoice() {
+        LlmModelCardJson selectedLlModelCard = LlmModelCardManager.instance().getSelectedLlModelCard();
+        return selectedLlModelCard != null && ttsModels.contains(selectedLlModelCard.getTtsFallbackModel());
+    }
+
+    public boolean isVoiceDowngraded() {
+        return voiceDowngraded;
+    }
+
+    /**
+     * @return the cache of spoken sentences, or null, if it is switched off or could not be opened
+     */
+    private TtsAudioCache ttsAudioCache() {
+        synchronized (ttsAudioCacheLock) {
+            int megabytes = SettingsManager.instance().getTtsCacheMegabytes();
+            if (megabytes == 0 || ttsAudioCacheFailed)
+                return null;
+            if (ttsAudioCache == null) {
+                try {
+                    ttsAudioCache = new TtsAudioCache(TTS_CACHE_DIRECTORY, megabytes * 1024L * 1024L);
+                } catch (Exception e) {
+                    logLn("Could not open the tts cache at '" + TTS_CACHE_DIRECTORY.toAbsolutePath() + "'", e);
+                    ttsAudioCacheFailed = true;
+                }
+            }
+            return ttsAudioCache;
+        }
+    }
+
+    private void closeTtsAudioCache() {
+        synchronized (ttsAudioCacheLock) {
+            if (ttsAudioCache != null)
+                ttsAudioCache.close();
+            ttsAudioCache = null;
+            ttsAudioCacheFailed = false;
+        }
+    }
+
+    private void putIntoTtsAudioCache(TtsSentence ttsSentence, byte[] pcm) {
+        TtsAudioCache cache = ttsAudioCache();
+        if (cache != null && ttsSentence.getCacheKey() != null && !ttsSentence.isAborted())
+            cache.put(ttsSentence.getCacheKey(), pcm);
+    }
+
+    /**
+     * Takes the sentences in the order they were filed and starts their synthesis. The sentences enter the queue to
+     * play in the same order, so the player keeps the order, even if a later sentence is synthesized first.
+     */
     private void generateTTS(ControlledThread thread) {
+        TtsSentence ttsSentence;
+        while (thread.shallThreadRun() && (ttsSentence = queueOfTextsToProduce.poll()) != null)
+            dispatch(ttsSentence);
+        // sentences skipped without a voice end the work right here
+        reportWorkState();
+    }
+
+    /**
+     * Hands the sentence on to the player, waiting while the player is too far behind.
+     *
+     * @return false, if the sentence is aborted, because the wait was interrupted
+     */
+    private boolean queueForPlaying(TtsSentence ttsSentence) {
+        currentlyDispatching = ttsSentence;
+        try {
+            // backpressure: no further synthesis starts, while the player is a full queue behind
+            queueOfTextsToPlay.put(ttsSentence);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            ttsSentence.abort();
+            return false;
+        } finally {
+            currentlyDispatching = null;
+        }
+        playingThread.signal();
+        return true;
+    }
+
+    private void dispatch(TtsSentence ttsSentence) {
+        long lagNanos = System.nanoTime() - ttsSentence.getQueuedAtNanos();
+        pipelineMetrics.getQueueWait().record(lagNanos);
+        updateVoiceDowngrade(lagNanos);
+        boolean inProcess = SettingsManager.instance().isTtsInProcess();
         Path piperExe = getPiperExe();
-        if (piperExe == null)
+        final String ttsModel = currentTtsModel();
+        if ((piperExe == null && !inProcess) || ttsModel == null) {
+            logLn("No piper or no tts model available, skipping '" + ttsSentence.getText() + "'");
+            ttsSentence.informSpoken();
             return;
-        // no models there
-        if (ttsModels.isEmpty())
+        }
+        ttsSentence.setAudioFormat(audioFormatOf(SettingsManager.instance().getPathToTtsModelFiles().resolve(ttsModel + ".onnx.json")));
+        // looked up here, where the voice speaking the sentence is known
+        lookUpInTtsAudioCache(ttsSentence, ttsModel);
+        if (ttsSentence.getCachedPcm() != null) {
+            pipelineMetrics.recordCacheHit();
+            if (!queueForPlaying(ttsSentence))
+                return;
+            startSynthesisThread("TTS Cache", () -> playFromTtsAudioCache(ttsSentence));
             return;
+        }
 
-        LlmModelCardJson selectedLlModelCard = LlmModelCardManager.instance().getSelectedLlModelCard();
-        final String ttsModel;
-        if (selectedLlModelCard == null || !ttsModels.contains(selectedLlModelCard.getTtsModel())) {
-            ttsModel = ttsModels.getFirst();
-        } else
-            ttsModel = selectedLlModelCard.getTtsModel();
-
-        List<String> command = List.of(piperExe.toAbsolutePath().toString(),
-                "--model", SettingsManager.instance().getPathToTtsModelFiles() + "\\" + ttsModel + ".onnx",
-                "--config", SettingsManager.instance().getPathToTtsModelFiles() + "\\" + ttsModel + ".onnx.json",
-                "--output_raw"
-        );
-        while (!queueOfTextsToProduce.isEmpty()) {
-            TtsSentence ttsSentence = queueOfTextsToProduce.remove();
-            queueOfTextsToPlay.add(ttsSentence);
-            currentThreads.add(ThreadManager.instance().startThread("Piper Execution",
-                    () -> startPiperCommand(command, ttsSentence),
-                    currentThreads::remove));
-        }
-    }
-
-    private void startPiperCommand(List<String> command, TtsSentence ttsSentence) {
+        // queued before the synthesis slot is taken, so no slot stays unused while the player is behind
+        if (!queueForPlaying(ttsSentence))
+            return;
+        Semaphore slots = synthesisSlots;
+        long slotWaitStart = System.nanoTime();
+        currentlyDispatching = ttsSentence;
+        try {
+            slots.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            ttsSentence.abort();
+            return;
+        } finally {
+            currentlyDispatching = null;
+        }
+        pipelineMetrics.getSlotWait().record(System.nanoTime() - slotWaitStart);
+        if (ttsSentence.isAborted()) {
+            slots.release();
+            return;
+        }
+
+        SynthesisJob job = new SynthesisJob(ttsSentence);
+        // live before it gets its voice, so the voice is not closed under the job
+        liveSyntheses.add(job);
+        Runnable synthesis;
+        OnnxPiperVoice voice = inProcess ? onnxVoiceFor(ttsModel, job) : null;
+        if (voice != null) {
+            synthesis = () -> synthesizeWithOnnx(voice, job);
+        } else if (piperExe != null) {
+            Path ttsModelFiles = SettingsManager.instance().getPathToTtsModelFiles();
+            List<String> command = List.of(piperExe.toAbsolutePath().toString(),
+                    "--model", ttsModelFiles.resolve(ttsModel + ".onnx").toAbsolutePath().toString(),
+                    "--config", ttsModelFiles.resolve(ttsModel + ".onnx.json").toAbsolutePath().toString(),
+                    "--output_raw"
+            );
+            PiperWorkerPool pool = workerPoolFor(piperExe, ttsModel, command, job);
+            synthesis = pool == null ? () -> startPiperCommand(command, job) : () -> synthesizeWithPool(pool, job);
+        } else {
+            logLn("Neither the onnx voice nor piper is available, skipping '" + ttsSentence.getText() + "'");
+            liveSyntheses.remove(job);
+            slots.release();
+            // the player finds the end of the sentence without samples
+            ttsSentence.close();
+            ttsSentence.informSpoken();
+            return;
+        }
+        // the synthesis belongs to the turn asking for it, cancelling the turn kills it as well
+        TurnScope turn = ThreadManager.instance().currentTurn();
+        if (turn != null && !turn.isCancelled())
+            turn.attach(job::cancel);
+        startSynthesisThread("Piper Execution", () -> {
+            long synthesisStart = System.nanoTime();
+            try {
+                synthesis.run();
+                if (!job.isCancelled())
+                    pipelineMetrics.recordSynthesizedText(ttsSentence.getText().length(), System.nanoTime() - synthesisStart);
+            } finally {
+                liveSyntheses.remove(job);
+                if (job.voice != null)
+                    closeUnusedVoices();
+                pipelineMetrics.getSynthesis().record(System.nanoTime() - synthesisStart);
+                slots.release();
+            }
+        });
+    }
+
+    private void startSynthesisThread(String threadName, Runnable synthesis) {
+        // counted before the start, so the pipeline never looks idle between dispatch and start
+        runningSyntheses.incrementAndGet();
+        ThreadManager.instance().fork(threadName, () -> {
+            try {
+                synthesis.run();
+            } finally {
+                runningSyntheses.decrementAndGet();
+                reportWorkState();
+            }
+        }, null);
+    }
+
+    private void playFromTtsAudioCache(TtsSentence ttsSentence) {
+        try {
+            byte[] pcm = ttsSentence.getCachedPcm();
+            ttsSentence.setCachedPcm(null);
+            ttsSentence.addToByteBuffer(pcm, 0, pcm.length);
+        } finally {
+            ttsSentence.close();
+        }
+    }
+
+    private void synthesizeWithOnnx(OnnxPiperVoice voice, SynthesisJob job) {
+        TtsSentence ttsSentence = job.sentence;
+        try {
+            byte[] pcm = voice.synthesize(prepareText(ttsSentence.getText()), job::attach);
+            ttsSentence.addToByteBuffer(pcm, 0, pcm.length);
+            putIntoTtsAudioCache(ttsSentence, pcm);
+        } catch (Exception e) {
+            if (job.isCancelled())
+                return;
+            throw new RuntimeException("Could not generate TTS sounds with onnx runtime", e);
+        } finally {
+            ttsSentence.close();
+        }
+    }
+
+    private void synthesizeWithPool(PiperWorkerPool pool, SynthesisJob job) {
+        TtsSentence ttsSentence = job.sentence;
+        try {
+            byte[] pcm = pool.synthesize(prepareText(ttsSentence.getText()), process -> job.attach(process::destroyForcibly));
+            ttsSentence.addToByteBuffer(pcm, 0, pcm.length);
+            putIntoTtsAudioCache(ttsSentence, pcm);
+        } catch (Exception e) {
+            if (job.isCancelled())
+                return;
+            throw new RuntimeException("Could not generate TTS sounds with piper worker", e);
+        } finally {
+            ttsSentence.close();
+        }
+    }
+
+    private void startPiperCommand(List<String> command, SynthesisJob job) {
+        TtsSentence ttsSentence = job.sentence;
         try {
             ProcessBuilder processBuilder = new ProcessBuilder(command);
             processBuilder.directory(SettingsManager.instance().getPathToPiper().toAbsolutePath().toFile());
             Process piperProcess = processBuilder.start();
+            job.attach(piperProcess::destroyForcibly);
 
-            Thread voiceCollectorThread = ThreadManager.instance().startThread("Piper voice collector",
-                    () -> collectVoices(piperProcess, ttsSentence),
-                    currentThreads::remove);
-            currentThreads.add(voiceCollectorThread);
-
+            // the sentence fits into the pipe, so piper reads all of it before the samples are collected
             try (OutputStream outputStream = piperProcess.getOutputStream()) {
-                String withoutAsterix = ttsSentence.getText().replace('*', ' ');
-                String cleanStutter = withoutAsterix.replaceAll("\\b(\\w)-\\1?(\\w+)", "$1$2");
-                if (!cleanStutter.equals(ttsSentence.getText()))
-                    System.out.println("Removed stuttering from \n'" + ttsSentence.getText() + "'\nto\n'" + cleanStutter + "'");
-                outputStream.write(cleanStutter.getBytes(StandardCharsets.UTF_8));
+                outputStream.write(prepareText(ttsSentence.getText()).getBytes(StandardCharsets.UTF_8));
                 outputStream.flush();
             }
-            // wait, until the sound file has been processed
-            while (piperProcess.isAlive())
-                Thread.sleep(100);
-            voiceCollectorThread.interrupt();
-            piperProcess.destroy();
-            ttsSentence.setAllBytesCaught(true);
+            collectVoices(piperProcess, ttsSentence);
+            piperProcess.waitFor();
         } catch (Exception e) {
+            ttsSentence.close();
+            if (job.isCancelled())
+                return;
             throw new RuntimeException("Could not generate TTS sounds with piper", e);
         }
     }
 
     private void collectVoices(Process piperProcess, TtsSentence ttsSentence) {
+        ByteArrayOutputStream forCache = ttsSentence.getCacheKey() == null ? null : new ByteArrayOutputStream();
         try (InputStream rawSoundOutput = piperProcess.getInputStream()) {
             byte[] buffer = new byte[1024];
             int numBytesRead;
-            while ((numBytesRead = rawSoundOutput.read(buffer)) != -1) {
+            while ((numBytesRead = rawSoundOutput.read(buffer)) != -1 && !ttsSentence.isAborted()) {
                 ttsSentence.addToByteBuffer(buffer, 0, numBytesRead);
+                if (forCache != null)
+                    forCache.write(buffer, 0, numBytesRead);
             }
+            if (forCache != null)
+                putIntoTtsAudioCache(ttsSentence, forCache.toByteArray());
+        } catch (IOException e) {
+            // reading fails, when the process is killed by a cancel
+            if (!ttsSentence.isAborted())
+                throw new RuntimeException("Could not collect sounds from piper for TTS", e);
         } catch (Exception e) {
             throw new RuntimeException("Could not collect sounds from piper for TTS", e);
+        } finally {
+            ttsSentence.close();
         }
     }
 
+    /**
+     * Queues the sentence for synthesis. Blocks, while the queue is full.
+     */
     public void fileSentence(TtsSentence ttsSentence) {
         if (!SettingsManager.instance().isTtsGeneration()) {
             ttsSentence.informSpoken();
             return;
         }
-        stopPlaying = false;
-        queueOfTextsToProduce.add(ttsSentence);
+        long filingStart = System.nanoTime();
+        ttsSentence.setQueuedAtNanos(filingStart);
+        try {
+            // backpressure: the LLM stream waits here, while the speech is too far behind
+            queueOfTextsToProduce.put(ttsSentence);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            ttsSentence.abort();
+            return;
+        }
+        pipelineMetrics.getBackpressure().record(System.nanoTime() - filingStart);
+        reportWorkState();
+        generationThread.signal();
         logLn("Adding to TTSQ '" + ttsSentence.getText() + "'");
     }
 
+    /**
+     * @return true, if the current voice has spoken the text before and its samples are in the cache
+     */
+    public boolean isInTtsAudioCache(String text) {
+        TtsAudioCache cache = ttsAudioCache();
+        String ttsModel = currentTtsModel();
+        if (cache == null || ttsModel == null)
+            return false;
+        Path ttsModelFiles = SettingsManager.instance().getPathToTtsModelFiles();
+        return cache.contains(cache.keyOf(text,
+                ttsModelFiles.resolve(ttsModel + ".onnx"),
+                ttsModelFiles.resolve(ttsModel + ".onnx.json")));
+    }
+
+    /**
+     * Gives the sentence its samples, if the voice has spoken the text before, so it is not synthesized again.
+     */
+    private void lookUpInTtsAudioCache(TtsSentence ttsSentence, String ttsModel) {
+        TtsAudioCache cache = ttsAudioCache();
+        if (cache == null)
+            return;
+        Path ttsModelFiles = SettingsManager.instance().getPathToTtsModelFiles();
+        String cacheKey = cache.keyOf(ttsSentence.getText(),
+                ttsModelFiles.resolve(ttsModel + ".onnx"),
+                ttsModelFiles.resolve(ttsModel + ".onnx.json"));
+        ttsSentence.setCacheKey(cacheKey);
+        ttsSentence.setCachedPcm(cache.get(cacheKey));
+    }
+
     @Override
     public boolean isWorking() {
         return !queueOfTextsToPlay.isEmpty() ||
                 !queueOfTextsToProduce.isEmpty() ||
-                !currentThreads.isEmpty() ||
-                isPlayingSound.get();
+                runningSyntheses.get() > 0 ||
+                isPlayingSound.get() ||
+                audioOutput.hasPendingSentences();
 
     }
-}
 
+    /**
+     * A running synthesis, which a cancel can stop at once by killing the piper process or the onnx run working on it.
+     */
+    private static class SynthesisJob {
+        private final TtsSentence sentence;
+        private final List<Runnable> cancelActions = new CopyOnWriteArrayList<>();
+        private volatile boolean cancelled = false;
+        /**
+         * the worker pool or onnx voice synthesizing the sentence, null, if it is a piper process of its own
+         */
+        private volatile AutoCloseable voice = null;
+
+        private SynthesisJob(TtsSentence sentence) {
+            this.sentence = sentence;
+        }
+
+        /**
+         * The action stops the work on the sentence. It runs right away, if the job was cancelled meanwhile.
+         */
+        private void attach(Runnable cancelAction) {
+            cancelActions.add(cancelAction);
+            if (cancelled)
+                cancelAction.run();
+        }
+
+        private void cancel() {
+            cancelled = true;
+            sentence.abort();
+            cancelActions.forEach(Runnable::run);
+        }
+
+        private boolean isCancelled() {
+            return cancelled;
+        }
+    }
+}
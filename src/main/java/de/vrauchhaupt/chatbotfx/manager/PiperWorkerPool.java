@@ -0,0 +1,175 @@
+package de.vrauchhaupt.chatbotfx.manager;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import de.vrauchhaupt.chatbotfx.IMessaging;
+import de.vrauchhaupt.chatbotfx.helper.JsonHelper;
+
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Long living piper processes for one voice model. Starting piper and loading the onnx model takes much longer than
+ * synthesizing one sentence, so the workers are started once and get their sentences over stdin in piper's json
+ * input mode. For every sentence a worker writes a wav file and prints its path, which is the signal, that the
+ * sentence is done.
+ * <p>
+ * Workers are started lazily up to the size of the pool. A worker, whose process died, is dropped and replaced by the
+ * next request. That is also how a synthesis is cancelled: the caller kills the process working on its text.
+ */
+public class PiperWorkerPool implements IMessaging, AutoCloseable {
+
+    private static final long WORKER_WAIT_MILLIS = 250L;
+
+    private final List<String> command;
+    private final Path workingDirectory;
+    private final Path outputDirectory;
+    private final int size;
+    private final LinkedBlockingQueue<PiperWorker> idleWorkers = new LinkedBlockingQueue<>();
+    private final List<PiperWorker> allWorkers = new ArrayList<>();
+    private final AtomicInteger fileIndex = new AtomicInteger(0);
+    private boolean closed = false;
+
+    public PiperWorkerPool(Path piperExe,
+                           Path workingDirectory,
+                           Path model,
+                           Path config,
+                           int size) throws IOException {
+        if (size < 1)
+            throw new IllegalArgumentException("A piper worker pool needs at least one worker");
+        this.workingDirectory = workingDirectory;
+        this.size = size;
+        outputDirectory = Files.createTempDirectory("chatbotfx_piper");
+        command = List.of(piperExe.toAbsolutePath().toString(),
+                "--model", model.toAbsolutePath().toString(),
+                "--config", config.toAbsolutePath().toString(),
+                "--json-input",
+                "--output_dir", outputDirectory.toAbsolutePath().toString());
+    }
+
+    /**
+     * @return the pcm samples of the spoken text, in the format of the voice model
+     */
+    public byte[] synthesize(String text) throws IOException, InterruptedException {
+        return synthesize(text, process -> {
+        });
+    }
+
+    /**
+     * @param onWorkerTaken gets the piper process, which is going to speak the text
+     * @return the pcm samples of the spoken text, in the format of the voice model
+     */
+    public byte[] synthesize(String text, Consumer<Process> onWorkerTaken) throws IOException, InterruptedException {
+        PiperWorker worker = takeWorker();
+        boolean workerUsable = false;
+        try {
+            onWorkerTaken.accept(worker.process);
+            byte[] returnValue = worker.synthesize(text,
+                    outputDirectory.resolve("sentence_" + fileIndex.incrementAndGet() + ".wav"));
+            workerUsable = true;
+            return returnValue;
+        } finally {
+            if (workerUsable)
+                idleWorkers.add(worker);
+            else
+                dropWorker(worker);
+        }
+    }
+
+    private PiperWorker takeWorker() throws IOException, InterruptedException {
+        while (true) {
+            PiperWorker worker = idleWorkers.poll();
+            if (worker != null)
+                return worker;
+            synchronized (allWorkers) {
+                if (closed)
+                    throw new IOException("Piper worker pool is closed");
+                if (allWorkers.size() < size) {
+                    worker = new PiperWorker();
+                    allWorkers.add(worker);
+                    return worker;
+                }
+            }
+            // a busy worker may die instead of coming back, so check for free places again from time to time
+            worker = idleWorkers.poll(WORKER_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+            if (worker != null)
+                return worker;
+        }
+    }
+
+    private void dropWorker(PiperWorker worker) {
+        synchronized (allWorkers) {
+            allWorkers.remove(worker);
+        }
+        worker.close();
+    }
+
+    @Override
+    public void close() {
+        synchronized (allWorkers) {
+            closed = true;
+            allWorkers.forEach(PiperWorker::close);
+            allWorkers.clear();
+        }
+        idleWorkers.clear();
+        try (var files = Files.list(outputDirectory)) {
+            for (Path file : files.toList())
+                Files.deleteIfExists(file);
+            Files.deleteIfExists(outputDirectory);
+        } catch (IOException e) {
+            logLn("Could not delete '" + outputDirectory + "'", e);
+        }
+    }
+
+    private class PiperWorker {
+        private final Process process;
+        private final BufferedWriter stdin;
+        private final BufferedReader stdout;
+
+        private PiperWorker() throws IOException {
+            ProcessBuilder processBuilder = new ProcessBuilder(command);
+            processBuilder.directory(workingDirectory.toAbsolutePath().toFile());
+            processBuilder.redirectError(ProcessBuilder.Redirect.DISCARD);
+            process = processBuilder.start();
+            stdin = new BufferedWriter(new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8));
+            stdout = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+            logLn("Started piper worker " + process.pid());
+        }
+
+        private byte[] synthesize(String text, Path outputFile) throws IOException {
+            ObjectNode line = JsonHelper.objectMapper().createObjectNode()
+                    .put("text", text)
+                    .put("output_file", outputFile.toAbsolutePath().toString());
+            stdin.write(JsonHelper.objectMapper().writeValueAsString(line));
+            stdin.newLine();
+            stdin.flush();
+            if (stdout.readLine() == null)
+                throw new IOException("Piper worker " + process.pid() + " has ended");
+            try (AudioInputStream audioInputStream = AudioSystem.getAudioInputStream(outputFile.toFile())) {
+                return audioInputStream.readAllBytes();
+            } catch (Exception e) {
+                throw new IOException("Could not read '" + outputFile + "' written by piper", e);
+            } finally {
+                Files.deleteIfExists(outputFile);
+            }
+        }
+
+        private void close() {
+            try {
+                stdin.close();
+            } catch (IOException e) {
+                // the process is destroyed anyway
+            }
+            process.destroy();
+        }
+    }
+}
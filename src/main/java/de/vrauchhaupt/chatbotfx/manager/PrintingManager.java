@@ -5,18 +5,20 @@ import de.vrauchhaupt.chatbotfx.model.ControlledThread;
 import de.vrauchhaupt.chatbotfx.model.DisplayRole;
 import de.vrauchhaupt.chatbotfx.model.TtsSentence;
 
-import java.util.LinkedList;
 import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 public class PrintingManager extends AbstractManager {
     private static PrintingManager INSTANCE = null;
     private final AtomicBoolean currentlyPrinting = new AtomicBoolean(false);
-    private final Queue<TtsSentence> queueToWrite = new LinkedList<>();
+    private final Queue<TtsSentence> queueToWrite = new ConcurrentLinkedQueue<>();
+    private final ControlledThread printingThread;
+    private volatile TtsSentence waitingForSpeech = null;
     private IPrintFunction printFunction = null;
 
     public PrintingManager() {
-        ThreadManager.instance().startEndlessThread("Sentence Printing Thread", this::printSentences);
+        printingThread = ThreadManager.instance().startEndlessThread("Sentence Printing Thread", this::printSentences);
     }
 
     public static PrintingManager instance() {
@@ -28,14 +30,20 @@ public class PrintingManager extends AbstractManager {
     public void addToPrintingQueue(TtsSentence ttsSentence) {
         logLn("Adding to PQ '" + ttsSentence.getText() + "'");
         queueToWrite.add(ttsSentence);
+        reportWorkState();
+        printingThread.signal();
     }
 
     private void printSentences(ControlledThread thread) {
         while (!queueToWrite.isEmpty() && thread.shallThreadRun()) {
+            // set before the sentence leaves the queue, so the manager does not look idle in between
             currentlyPrinting.set(true);
             TtsSentence ttsSentence = queueToWrite.poll();
-            if (ttsSentence == null)
+            if (ttsSentence == null) {
+                currentlyPrinting.set(false);
                 continue;
+            }
+            waitingForSpeech = ttsSentence;
             logLn("Printing PQ '" + ttsSentence.getText() + "'");
             int textWidth = 0;
             boolean firstWord = true;
@@ -55,13 +63,20 @@ public class PrintingManager extends AbstractManager {
             currentlyPrinting.set(false);
 
             // wait until the sentence was spoken
-            while (!ttsSentence.wasSpoken() && thread.shallThreadRun())
-                thread.waitAWhile();
+            try {
+                ttsSentence.awaitSpoken();
+            } catch (InterruptedException e) {
+                thread.stopThread();
+            } finally {
+                waitingForSpeech = null;
+            }
         }
+        reportWorkState();
     }
 
+    @Override
     public boolean isWorking() {
-        return queueToWrite.isEmpty() && currentlyPrinting.get();
+        return !queueToWrite.isEmpty() || currentlyPrinting.get() || waitingForSpeech != null;
     }
 
     @Override
@@ -82,6 +97,10 @@ public class PrintingManager extends AbstractManager {
 
     public void cancelWork() {
         queueToWrite.clear();
+        TtsSentence sentence = waitingForSpeech;
+        if (sentence != null)
+            sentence.abort();
+        reportWorkState();
     }
 
     public void setPrintFunction(IPrintFunction printFunction) {
@@ -18,6 +18,8 @@ import java.net.URL;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
 
 import static de.vrauchhaupt.chatbotfx.helper.JsonHelper.objectWriter;
 
@@ -26,6 +28,7 @@ public class SettingsManager extends AbstractManager {
 
     private static final String DEFAULT_OLLAMA_HOST = "http://localhost:11434/";
     private static final String DEFAULT_WEBUI_FORGE_HOST = "http://localhost:7860/";
+    private static final String DEFAULT_ESPEAK_COMMAND = "espeak-ng";
     private static final Path SETTINGS_FILE = Paths.get(".", "chatbot_config.json");
 
     private static SettingsManager INSTANCE = null;
@@ -35,10 +38,39 @@ public class SettingsManager extends AbstractManager {
     private final SimpleObjectProperty<Path> pathToTtsModelFiles = new SimpleObjectProperty<>();
     private final SimpleStringProperty selectedLlmModelCard = new SimpleStringProperty();
     private final SimpleStringProperty ollamaHost = new SimpleStringProperty(DEFAULT_OLLAMA_HOST);
+    private final SimpleObjectProperty<List<String>> additionalOllamaHosts = new SimpleObjectProperty<>(List.of());
     private final SimpleStringProperty webuiForgeHost = new SimpleStringProperty(DEFAULT_WEBUI_FORGE_HOST);
     private final SimpleBooleanProperty text2ImageGeneration = new SimpleBooleanProperty(false);
     private final SimpleBooleanProperty ttsGeneration = new SimpleBooleanProperty(true);
     private final IntegerProperty messagesToStripForLLM = new SimpleIntegerProperty(30);
+    /**
+     * amount of long living piper processes per voice, 0 starts one piper process per sentence
+     */
+    private final IntegerProperty ttsWorkers = new SimpleIntegerProperty(2);
+    /**
+     * size of the buffer of the sound output. Smaller reacts faster to a cancel, larger is safer against stuttering.
+     */
+    private final IntegerProperty audioBufferMillis = new SimpleIntegerProperty(250);
+    /**
+     * size of the cache of spoken sentences on disk, 0 switches the cache off
+     */
+    private final IntegerProperty ttsCacheMegabytes = new SimpleIntegerProperty(256);
+    /**
+     * amount of sentences waiting for synthesis, before the LLM answer waits for the speech to catch up
+     */
+    private final IntegerProperty ttsQueueCapacity = new SimpleIntegerProperty(8);
+    /**
+     * amount of sentences synthesized at the same time
+     */
+    private final IntegerProperty ttsSynthesisThreads = new SimpleIntegerProperty(2);
+    /**
+     * runs the voice models with onnx runtime inside the application instead of the piper executable
+     */
+    private final SimpleBooleanProperty ttsInProcess = new SimpleBooleanProperty(false);
+    /**
+     * espeak-ng executable turning text into phonemes for the voice models run inside the application
+     */
+    private final SimpleStringProperty espeakCommand = new SimpleStringProperty(DEFAULT_ESPEAK_COMMAND);
 
     private boolean isLoadingInProgress = false;
     private final ChangeListener saveToFileListener = (obs, oldV, newV) -> {
@@ -54,8 +86,16 @@ public class SettingsManager extends AbstractManager {
         pathToTtsModelFiles.addListener(saveToFileListener);
         selectedLlmModelCard.addListener(saveToFileListener);
         ollamaHost.addListener(saveToFileListener);
+        additionalOllamaHosts.addListener(saveToFileListener);
         webuiForgeHost.addListener(saveToFileListener);
         messagesToStripForLLM.addListener(saveToFileListener);
+        ttsWorkers.addListener(saveToFileListener);
+        audioBufferMillis.addListener(saveToFileListener);
+        ttsCacheMegabytes.addListener(saveToFileListener);
+        ttsQueueCapacity.addListener(saveToFileListener);
+        ttsSynthesisThreads.addListener(saveToFileListener);
+        ttsInProcess.addListener(saveToFileListener);
+        espeakCommand.addListener(saveToFileListener);
         selectedLlmModelCard.addListener(((observableValue, oldV, newV) -> System.out.println("Selected model card from " + oldV + " to " + newV)));
     }
 
@@ -162,6 +202,32 @@ public class SettingsManager extends AbstractManager {
         return ollamaHost;
     }
 
+    public List<String> getAdditionalOllamaHosts() {
+        return additionalOllamaHosts.get();
+    }
+
+    public SettingsManager setAdditionalOllamaHosts(List<String> additionalOllamaHosts) {
+        this.additionalOllamaHosts.set(additionalOllamaHosts == null ? List.of() : List.copyOf(additionalOllamaHosts));
+        return this;
+    }
+
+    public SimpleObjectProperty<List<String>> additionalOllamaHostsProperty() {
+        return additionalOllamaHosts;
+    }
+
+    /**
+     * @return the ollama host and the additional ones, without duplicates. The ollama host is always the first.
+     */
+    public List<String> getOllamaHosts() {
+        List<String> returnValue = new ArrayList<>();
+        returnValue.add(getOllamaHost());
+        for (String additionalOllamaHost : getAdditionalOllamaHosts()) {
+            if (additionalOllamaHost != null && !additionalOllamaHost.isBlank() && !returnValue.contains(additionalOllamaHost.trim()))
+                returnValue.add(additionalOllamaHost.trim());
+        }
+        return returnValue;
+    }
+
     public String getWebuiForgeHost() {
         return webuiForgeHost.get();
     }
@@ -206,6 +272,95 @@ public class SettingsManager extends AbstractManager {
         return messagesToStripForLLM;
     }
 
+    public int getTtsWorkers() {
+        return ttsWorkers.get();
+    }
+
+    public SettingsManager setTtsWorkers(int ttsWorkers) {
+        this.ttsWorkers.set(Math.max(0, ttsWorkers));
+        return this;
+    }
+
+    public IntegerProperty ttsWorkersProperty() {
+        return ttsWorkers;
+    }
+
+    public int getAudioBufferMillis() {
+        return audioBufferMillis.get();
+    }
+
+    public SettingsManager setAudioBufferMillis(int audioBufferMillis) {
+        this.audioBufferMillis.set(audioBufferMillis <= 0 ? 250 : audioBufferMillis);
+        return this;
+    }
+
+    public int getTtsCacheMegabytes() {
+        return ttsCacheMegabytes.get();
+    }
+
+    public SettingsManager setTtsCacheMegabytes(int ttsCacheMegabytes) {
+        this.ttsCacheMegabytes.set(Math.max(0, ttsCacheMegabytes));
+        return this;
+    }
+
+    public IntegerProperty ttsCacheMegabytesProperty() {
+        return ttsCacheMegabytes;
+    }
+
+    public int getTtsQueueCapacity() {
+        return ttsQueueCapacity.get();
+    }
+
+    public SettingsManager setTtsQueueCapacity(int ttsQueueCapacity) {
+        this.ttsQueueCapacity.set(ttsQueueCapacity <= 0 ? 8 : ttsQueueCapacity);
+        return this;
+    }
+
+    public IntegerProperty ttsQueueCapacityProperty() {
+        return ttsQueueCapacity;
+    }
+
+    public int getTtsSynthesisThreads() {
+        return ttsSynthesisThreads.get();
+    }
+
+    public SettingsManager setTtsSynthesisThreads(int ttsSynthesisThreads) {
+        this.ttsSynthesisThreads.set(Math.max(1, ttsSynthesisThreads));
+        return this;
+    }
+
+    public IntegerProperty ttsSynthesisThreadsProperty() {
+        return ttsSynthesisThreads;
+    }
+
+    public boolean isTtsInProcess() {
+        return ttsInProcess.get();
+    }
+
+    public SettingsManager setTtsInProcess(boolean ttsInProcess) {
+        this.ttsInProcess.set(ttsInProcess);
+        return this;
+    }
+
+    public SimpleBooleanProperty ttsInProcessProperty() {
+        return ttsInProcess;
+    }
+
+    public String getEspeakCommand() {
+        return espeakCommand.get();
+    }
+
+    public SettingsManager setEspeakCommand(String espeakCommand) {
+        if (espeakCommand == null || espeakCommand.isEmpty())
+            espeakCommand = DEFAULT_ESPEAK_COMMAND;
+        this.espeakCommand.set(espeakCommand);
+        return this;
+    }
+
+    public SimpleStringProperty espeakCommandProperty() {
+        return espeakCommand;
+    }
+
     public SettingsJson toJsonObject() {
         return new SettingsJson()
                 .setPathToPiper(getPathToPiper() == null ? null : getPathToPiper().toAbsolutePath().toString())
@@ -213,8 +368,16 @@ public class SettingsManager extends AbstractManager {
                 .setPathToLlmModelFiles(getPathToLlmModelFiles().toAbsolutePath().toString())
                 .setPathToTtsModelFiles(getPathToTtsModelFiles().toAbsolutePath().toString())
                 .setOllamaHost(getOllamaHost())
+                .setAdditionalOllamaHosts(new ArrayList<>(getAdditionalOllamaHosts()))
                 .setSelectedLlmModelCard(getSelectedLlmModelCard())
-                .setMessagesToStripForLlm(getMessagesToStripForLLM());
+                .setMessagesToStripForLlm(getMessagesToStripForLLM())
+                .setTtsWorkers(getTtsWorkers())
+                .setAudioBufferMillis(getAudioBufferMillis())
+                .setTtsCacheMegabytes(getTtsCacheMegabytes())
+                .setTtsQueueCapacity(getTtsQueueCapacity())
+                .setTtsSynthesisThreads(getTtsSynthesisThreads())
+                .setTtsInProcess(isTtsInProcess())
+                .setEspeakCommand(getEspeakCommand());
 
     }
 
@@ -231,7 +394,15 @@ public class SettingsManager extends AbstractManager {
             setPathToTtsModelFiles(settingsJson.getPathToTtsModelFiles() == null ? null : Paths.get(settingsJson.getPathToTtsModelFiles()));
             setSelectedLlmModelCard(settingsJson.getSelectedLlmModelCard());
             setOllamaHost(settingsJson.getOllamaHost());
+            setAdditionalOllamaHosts(settingsJson.getAdditionalOllamaHosts());
             setMessagesToStripForLLM(settingsJson.getMessagesToStripForLlm());
+            setTtsWorkers(settingsJson.getTtsWorkers());
+            setAudioBufferMillis(settingsJson.getAudioBufferMillis());
+            setTtsCacheMegabytes(settingsJson.getTtsCacheMegabytes());
+            setTtsQueueCapacity(settingsJson.getTtsQueueCapacity());
+            setTtsSynthesisThreads(settingsJson.getTtsSynthesisThreads());
+            setTtsInProcess(settingsJson.isTtsInProcess());
+            setEspeakCommand(settingsJson.getEspeakCommand());
         } catch (Exception e) {
             throw new RuntimeException("Could not load settings from SettingsJson", e);
         } finally {
@@ -68,14 +68,13 @@ public class StableDiffusionManager extends AbstractManager {
     public void renderWithPrompt(int index, LlmModelCardJson modelCardJson, String prompt, IPrintFunction imageConsumer) {
         if (modelCardJson.getTxt2ImgModel() == null || modelCardJson.getTxt2ImgModel().isEmpty())
             return;
-        new Thread(() -> {
+        ThreadManager.instance().fork("Render Image", () -> {
             try {
                 renderWithPromptInternally(index, modelCardJson, prompt, imageConsumer);
             } catch (Exception e) {
                 e.printStackTrace();
             }
-        }).start();
-
+        }, null);
     }
 
     private ObjectNode genPayload(String prompt, String modelName, int width, int height) {
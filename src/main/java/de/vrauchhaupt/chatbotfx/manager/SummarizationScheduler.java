@@ -0,0 +1,101 @@
+package de.vrauchhaupt.chatbotfx.manager;
+
+import de.vrauchhaupt.chatbotfx.IMessaging;
+import de.vrauchhaupt.chatbotfx.model.ChatViewModel;
+import de.vrauchhaupt.chatbotfx.model.LlmModelCardJson;
+import de.vrauchhaupt.chatbotfx.model.SummaryFold;
+
+/**
+ * Runs at most one summarization of the chat at a time. Every run folds only the messages, which dropped out of the
+ * context window since the last run, into the rolling summary. Requests arriving while a run is active are merged into
+ * one follow up run.
+ * <p>
+ * The summarization runs in the background and is no work the user has to wait for, so it is not reported to the
+ * {@link WorkTracker}.
+ */
+public class SummarizationScheduler implements IMessaging {
+
+    private final Object lock = new Object();
+    private Thread runningJob = null;
+    private LlmModelCardJson pendingModel = null;
+
+    public void schedule(LlmModelCardJson model) {
+        synchronized (lock) {
+            if (runningJob != null) {
+                pendingModel = model;
+                return;
+            }
+            runningJob = ThreadManager.instance().fork("Summarize LLM Messages", () -> run(model), this::jobFinished);
+        }
+    }
+
+    public boolean isWorking() {
+        synchronized (lock) {
+            return runningJob != null;
+        }
+    }
+
+    public void cancel() {
+        synchronized (lock) {
+            pendingModel = null;
+            if (runningJob != null)
+                runningJob.interrupt();
+        }
+    }
+
+    private void run(LlmModelCardJson model) {
+        while (model != null) {
+            boolean folded = fold(model);
+            synchronized (lock) {
+                model = pendingModel;
+                pendingModel = null;
+                if (model != null && !folded) {
+                    // this thread may be interrupted by a cancel, the request arriving after it gets a job of its own
+                    LlmModelCardJson pending = model;
+                    runningJob = ThreadManager.instance().fork("Summarize LLM Messages", () -> run(pending), this::jobFinished);
+                    model = null;
+                } else if (model == null) {
+                    // released within the lock, so a request arriving now starts a new job instead of getting lost
+                    runningJob = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return false, if the summarization was cancelled or failed
+     */
+    private boolean fold(LlmModelCardJson model) {
+        int maxMessages = SettingsManager.instance().getMessagesToStripForLLM();
+        SummaryFold summaryFold;
+        while ((summaryFold = ChatViewModel.instance().prepareSummaryFold(maxMessages)) != null) {
+            String summary;
+            try {
+                summary = OllamaManager.instance().summarize(summaryFold, model);
+            } catch (Exception e) {
+                if (Thread.currentThread().isInterrupted())
+                    logLn("Summarizing was cancelled");
+                else
+                    logLn("Could not summarize ", e);
+                return false;
+            }
+            if (Thread.currentThread().isInterrupted()) {
+                logLn("Summarizing was cancelled");
+                return false;
+            }
+            if (!ChatViewModel.instance().applySummaryFold(summaryFold, summary)) {
+                logLn("Summarized messages were changed in the meantime, the summary is dropped");
+                return true;
+            }
+            logLn("Summarized " + summaryFold.getAgedOutMessages().size() + " messages to the following:\n" + summary);
+        }
+        return true;
+    }
+
+    private void jobFinished(Thread thread) {
+        synchronized (lock) {
+            if (runningJob == thread)
+                runningJob = null;
+        }
+    }
+}
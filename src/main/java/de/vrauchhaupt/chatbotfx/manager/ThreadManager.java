@@ -6,11 +6,22 @@ import javafx.collections.FXCollections;
 import javafx.collections.ListChangeListener;
 import javafx.collections.ObservableList;
 
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 
+/**
+ * Starts the worker threads of the application. Workers are virtual threads, so a thread per sentence, request or
+ * render costs next to nothing and the number of platform threads does not grow with the work. Only the few endless
+ * threads are platform threads.
+ * <p>
+ * The jobs of a chat turn are grouped in the {@link TurnScope} opened by {@link #openTurn()}, see
+ * {@link #fork(String, Runnable, Consumer)}.
+ */
 public class ThreadManager extends AbstractManager implements Thread.UncaughtExceptionHandler {
     private static ThreadManager INSTANCE = new ThreadManager();
     private final ObservableList<ErrorDto> errors = FXCollections.observableArrayList();
+    private final AtomicInteger runningWorkers = new AtomicInteger(0);
+    private volatile TurnScope currentTurn = null;
 
     public ThreadManager() {
         errors.addListener((ListChangeListener<? super ErrorDto>) this::newErrorRecognized);
@@ -44,26 +55,61 @@ public class ThreadManager extends AbstractManager implements Thread.UncaughtExc
         errors.add(new ErrorDto(e.getMessage(), e));
     }
 
+    /**
+     * @return the number of worker threads running right now
+     */
+    public int getRunningWorkerCount() {
+        return runningWorkers.get();
+    }
+
+    /**
+     * Opens the scope of a new chat turn, which the jobs started by {@link #fork(String, Runnable, Consumer)} join.
+     */
+    public TurnScope openTurn() {
+        TurnScope turn = new TurnScope();
+        currentTurn = turn;
+        return turn;
+    }
+
+    /**
+     * @return the scope of the latest chat turn, null, if there was none yet
+     */
+    public TurnScope currentTurn() {
+        return currentTurn;
+    }
+
+    /**
+     * Starts the job as part of the current turn, so it is cancelled with it. Without a running turn, the job is
+     * started on its own.
+     */
+    public Thread fork(String threadName, Runnable runnable, Consumer<Thread> onThreadFinished) {
+        TurnScope turn = currentTurn;
+        if (turn == null || turn.isCancelled())
+            return startThread(threadName, runnable, onThreadFinished);
+        return turn.fork(threadName, runnable, onThreadFinished);
+    }
+
     public Thread startThread(String threadName, Runnable runnable, Consumer<Thread> onThreadFinished) {
         System.out.println("Starting worker thread '" + threadName + "'");
-        final Thread returnValue = new Thread(() -> {
-            try {
-                runnable.run();
-            } catch (Exception e) {
-                if (e instanceof InterruptedException)
-                    System.out.println("Interruppted thread " + threadName);
-                else
-                    this.uncaughtException(Thread.currentThread(), e);
-            } finally {
-                if (onThreadFinished != null)
-                    onThreadFinished.accept(Thread.currentThread());
-                System.out.println("Finished with worker thread '" + threadName + "'");
-            }
-        });
-        returnValue.setName(threadName);
-        returnValue.setUncaughtExceptionHandler(this);
-        returnValue.start();
-        return returnValue;
+        runningWorkers.incrementAndGet();
+        return Thread.ofVirtual()
+                .name(threadName)
+                .uncaughtExceptionHandler(this)
+                .start(() -> {
+                    try {
+                        runnable.run();
+                    } catch (Exception e) {
+                        if (e instanceof InterruptedException)
+                            System.out.println("Interruppted thread " + threadName);
+                        else
+                            this.uncaughtException(Thread.currentThread(), e);
+                    } finally {
+                        runningWorkers.decrementAndGet();
+                        if (onThreadFinished != null)
+                            onThreadFinished.accept(Thread.currentThread());
+                        System.out.println("Finished with worker thread '" + threadName + "'");
+                    }
+                });
     }
 
     public ControlledThread startEndlessThread(String threadName, Consumer<ControlledThread> runnable) {
@@ -0,0 +1,236 @@
+package de.vrauchhaupt.chatbotfx.manager;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import de.vrauchhaupt.chatbotfx.IMessaging;
+import de.vrauchhaupt.chatbotfx.helper.JsonHelper;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Pcm samples of spoken sentences, so the same text spoken by the same voice is synthesized only once.
+ * <p>
+ * The key is a SHA-256 hash of the normalized text, the voice model and the content of its config. The samples are
+ * appended to one memory mapped segment file of the size of the cache, the index next to it holds offset and length
+ * of every entry in least recently used order. When the segment file is full, the least recently used entries are
+ * dropped, until a quarter of the file is free, and the rest is moved to the start of the file.
+ * <p>
+ * The index on disk must never point at samples, which were overwritten. It is replaced atomically by a temporary
+ * file. Before entries are moved, an index without them is written, and the full index only after they were moved. New
+ * samples are appended behind all entries the index on disk knows, so the index after a put is written a little later,
+ * together with those of the following puts.
+ */
+public final class TtsAudioCache implements IMessaging {
+
+    private static final String SEGMENT_FILE = "segments.bin";
+    private static final String INDEX_FILE = "index.json";
+    private static final String INDEX_TEMP_FILE = "index.json.tmp";
+    private static final double FREE_AFTER_EVICTION = 0.25;
+    private static final long INDEX_SAVE_DELAY_MILLIS = 2000;
+
+    private final Path directory;
+    private final long capacity;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<Path, String> configHashes = new ConcurrentHashMap<>();
+    private FileChannel channel;
+    private MappedByteBuffer segment;
+    private long end = 0;
+    private boolean indexSaveScheduled = false;
+    private boolean closed = false;
+
+    public TtsAudioCache(Path directory, long capacity) throws IOException {
+        if (capacity <= 0 || capacity > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Capacity of the tts cache must be between 1 byte and 2 GB");
+        this.directory = directory;
+        this.capacity = capacity;
+        Files.createDirectories(directory);
+        channel = FileChannel.open(directory.resolve(SEGMENT_FILE),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        loadIndex();
+    }
+
+    /**
+     * @return the key of the text spoken by the voice model with the config
+     */
+    public String keyOf(String text, Path model, Path config) {
+        String configHash = configHashes.computeIfAbsent(config, path -> {
+            try {
+                return sha256(Files.readAllBytes(path));
+            } catch (IOException e) {
+                logLn("Could not read tts model config '" + path + "'", e);
+                return "";
+            }
+        });
+        String normalizedText = text.trim().replaceAll("\\s+", " ");
+        return sha256((normalizedText + "\u0000" + model.getFileName() + "\u0000" + configHash).getBytes(StandardCharsets.UTF_8));
+    }
+
+    public synchronized boolean contains(String key) {
+        return entries.containsKey(key);
+    }
+
+    /**
+     * @return a copy of the cached samples, or null, if there are none for the key
+     */
+    public synchronized byte[] get(String key) {
+        Entry entry = entries.get(key);
+        if (entry == null)
+            return null;
+        byte[] returnValue = new byte[entry.length];
+        segment.get((int) entry.offset, returnValue);
+        return returnValue;
+    }
+
+    public synchronized void put(String key, byte[] pcm) {
+        if (pcm.length == 0 || pcm.length > capacity * (1 - FREE_AFTER_EVICTION) || entries.containsKey(key))
+            return;
+        if (end + pcm.length > capacity)
+            evict(capacity - Math.max(pcm.length, (long) (capacity * FREE_AFTER_EVICTION)));
+        segment.put((int) end, pcm);
+        entries.put(key, new Entry(end, pcm.length));
+        end += pcm.length;
+        scheduleIndexSave();
+    }
+
+    private void scheduleIndexSave() {
+        if (indexSaveScheduled)
+            return;
+        indexSaveScheduled = true;
+        ThreadManager.instance().startThread("Save TTS Cache Index", () -> {
+            try {
+                Thread.sleep(INDEX_SAVE_DELAY_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            synchronized (this) {
+                indexSaveScheduled = false;
+                if (!closed) {
+                    // the samples have to be on disk before the index points at them
+                    segment.force();
+                    saveIndex(entries.entrySet());
+                }
+            }
+        }, null);
+    }
+
+    /**
+     * Drops the least recently used entries, until the rest fits into the given size, and moves the rest to the start
+     * of the segment file.
+     */
+    private void evict(long maxSize) {
+        long size = entries.values().stream().mapToLong(x -> x.length).sum();
+        Iterator<Entry> leastRecentlyUsedFirst = entries.values().iterator();
+        int evicted = 0;
+        while (size > maxSize && leastRecentlyUsedFirst.hasNext()) {
+            size -= leastRecentlyUsedFirst.next().length;
+            leastRecentlyUsedFirst.remove();
+            evicted++;
+        }
+        // moving in the order of the offsets only ever copies to the front, so no entry overwrites one not moved yet
+        List<Map.Entry<String, Entry>> byOffset = new ArrayList<>(entries.entrySet());
+        byOffset.sort(Comparator.comparingLong(x -> x.getValue().offset));
+        List<Map.Entry<String, Entry>> staying = new ArrayList<>();
+        long newEnd = 0;
+        for (Map.Entry<String, Entry> entry : byOffset) {
+            if (entry.getValue().offset == newEnd)
+                staying.add(entry);
+            newEnd += entry.getValue().length;
+        }
+        // a crash while moving leaves an index with the entries, which are not touched
+        saveIndex(staying);
+        newEnd = 0;
+        for (Map.Entry<String, Entry> mapEntry : byOffset) {
+            Entry entry = mapEntry.getValue();
+            if (entry.offset != newEnd) {
+                segment.put((int) newEnd, segment, (int) entry.offset, entry.length);
+                entry.offset = newEnd;
+            }
+            newEnd += entry.length;
+        }
+        end = newEnd;
+        segment.force();
+        saveIndex(entries.entrySet());
+        logLn("Evicted " + evicted + " sentences from the tts cache, " + entries.size() + " left");
+    }
+
+    public synchronized void close() {
+        closed = true;
+        segment.force();
+        saveIndex(entries.entrySet());
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logLn("Could not close tts cache", e);
+        }
+    }
+
+    private void loadIndex() {
+        Path indexFile = directory.resolve(INDEX_FILE);
+        if (!Files.exists(indexFile))
+            return;
+        try {
+            // least recently used first, so putting them in this order restores the order of the access
+            for (JsonNode node : JsonHelper.objectMapper().readTree(indexFile.toFile())) {
+                long offset = node.path("offset").asLong(-1);
+                int length = node.path("length").asInt(-1);
+                if (offset < 0 || length <= 0 || offset + length > capacity)
+                    continue;
+                entries.put(node.path("key").asText(), new Entry(offset, length));
+                end = Math.max(end, offset + length);
+            }
+        } catch (IOException e) {
+            logLn("Could not read tts cache index '" + indexFile + "', starting with an empty cache", e);
+            entries.clear();
+            end = 0;
+        }
+    }
+
+    /**
+     * Replaces the index by one with the given entries, in one step, so a crash leaves the old or the new index.
+     */
+    private void saveIndex(Collection<Map.Entry<String, Entry>> indexEntries) {
+        ArrayNode index = JsonHelper.objectMapper().createArrayNode();
+        indexEntries.forEach(entry -> index.addObject()
+                .put("key", entry.getKey())
+                .put("offset", entry.getValue().offset)
+                .put("length", entry.getValue().length));
+        Path tempFile = directory.resolve(INDEX_TEMP_FILE);
+        try {
+            JsonHelper.objectMapper().writeValue(tempFile.toFile(), index);
+            Files.move(tempFile, directory.resolve(INDEX_FILE),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logLn("Could not write tts cache index", e);
+        }
+    }
+
+    private static String sha256(byte[] bytes) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(bytes));
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-256 is not available", e);
+        }
+    }
+
+    private static class Entry {
+        private long offset;
+        private final int length;
+
+        private Entry(long offset, int length) {
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+}
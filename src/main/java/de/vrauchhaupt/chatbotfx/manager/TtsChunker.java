@@ -0,0 +1,162 @@
+package de.vrauchhaupt.chatbotfx.manager;
+
+import de.vrauchhaupt.chatbotfx.model.TtsSentence;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.IntSupplier;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+
+/**
+ * Brings the sentences of a streamed answer to a length good for synthesis, before they are filed for TTS. Each call
+ * of piper has an overhead, which dominates short sentences, while a long sentence delays its first audio.
+ * <ul>
+ *     <li>A sentence much longer than the target length is split at its clauses, or at words, if a clause is still
+ *     too long.</li>
+ *     <li>Short sentences are held back and merged, while the pipeline is busy with earlier ones anyway. A sentence
+ *     reaching an idle pipeline is filed at once, so the first audio is not delayed.</li>
+ *     <li>A sentence found in the tts cache is filed as it is, the cache only knows whole sentences.</li>
+ * </ul>
+ * The sentences shown to the user stay as they are: a merged or split chunk informs its original sentences, when it
+ * was spoken. Not thread safe, one instance per stream.
+ */
+public class TtsChunker {
+
+    private static final double SPLIT_FACTOR = 1.5;
+    private static final Pattern CLAUSE_END = Pattern.compile("(?<=[,;:\\u2013\\u2014])\\s+");
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+    private final Consumer<TtsSentence> sink;
+    private final IntSupplier targetLength;
+    private final BooleanSupplier pipelineBusy;
+    private final Predicate<String> cached;
+    private final List<TtsSentence> held = new ArrayList<>();
+    private int heldLength = 0;
+
+    /**
+     * @param cached tells, whether the samples of a text are in the tts cache
+     */
+    public TtsChunker(Consumer<TtsSentence> sink, IntSupplier targetLength, BooleanSupplier pipelineBusy,
+                      Predicate<String> cached) {
+        this.sink = sink;
+        this.targetLength = targetLength;
+        this.pipelineBusy = pipelineBusy;
+        this.cached = cached;
+    }
+
+    public void accept(TtsSentence sentence) {
+        int target = targetLength.getAsInt();
+        String text = sentence.getText();
+        if (cached.test(text)) {
+            flush();
+            sink.accept(sentence);
+            return;
+        }
+        if (text.length() > target * SPLIT_FACTOR) {
+            flush();
+            split(sentence, target);
+            return;
+        }
+        if (!held.isEmpty() && (heldLength + 1 + text.length() > target
+                || held.getFirst().getChatMessageIndex() != sentence.getChatMessageIndex()))
+            flush();
+        held.add(sentence);
+        heldLength += held.size() == 1 ? text.length() : 1 + text.length();
+        if (heldLength >= target / 2 || !pipelineBusy.getAsBoolean())
+            flush();
+    }
+
+    /**
+     * Files the held sentences, if the pipeline has run out of work. Called for every streamed chunk, so the held
+     * sentences do not wait for the next sentence of a slow LLM.
+     */
+    public void poll() {
+        if (!held.isEmpty() && !pipelineBusy.getAsBoolean())
+            flush();
+    }
+
+    /**
+     * Files the held sentences.
+     */
+    public void flush() {
+        if (held.isEmpty())
+            return;
+        if (held.size() == 1) {
+            sink.accept(held.getFirst());
+        } else {
+            StringBuilder text = new StringBuilder();
+            for (TtsSentence sentence : held) {
+                if (!text.isEmpty())
+                    text.append(' ');
+                text.append(sentence.getText());
+            }
+            TtsSentence merged = new TtsSentence(text.toString(), held.getFirst().getChatMessageIndex());
+            List<TtsSentence> originals = List.copyOf(held);
+            merged.addOnSpoken(() -> originals.forEach(TtsSentence::informSpoken));
+            merged.addOnAborted(() -> originals.forEach(TtsSentence::abort));
+            sink.accept(merged);
+        }
+        held.clear();
+        heldLength = 0;
+    }
+
+    /**
+     * Drops the held sentences of a stream, which ended without {@link #flush()}. They are aborted, so nothing waits
+     * for them to be spoken.
+     */
+    public void discard() {
+        held.forEach(TtsSentence::abort);
+        held.clear();
+        heldLength = 0;
+    }
+
+    private void split(TtsSentence sentence, int target) {
+        List<String> parts = new ArrayList<>();
+        StringBuilder part = new StringBuilder();
+        for (String clause : CLAUSE_END.split(sentence.getText())) {
+            for (String piece : clause.length() > target * SPLIT_FACTOR ? splitAtWords(clause, target) : List.of(clause)) {
+                if (!part.isEmpty() && part.length() + 1 + piece.length() > target) {
+                    parts.add(part.toString());
+                    part.setLength(0);
+                }
+                if (!part.isEmpty())
+                    part.append(' ');
+                part.append(piece);
+            }
+        }
+        if (!part.isEmpty())
+            parts.add(part.toString());
+        if (parts.size() < 2) {
+            sink.accept(sentence);
+            return;
+        }
+        for (int i = 0; i < parts.size(); i++) {
+            TtsSentence chunk = new TtsSentence(parts.get(i), sentence.getChatMessageIndex());
+            // the parts are spoken in order, so the last one tells, that the whole sentence was spoken
+            if (i == parts.size() - 1)
+                chunk.addOnSpoken(sentence::informSpoken);
+            chunk.addOnAborted(sentence::abort);
+            sink.accept(chunk);
+        }
+    }
+
+    private static List<String> splitAtWords(String clause, int target) {
+        List<String> returnValue = new ArrayList<>();
+        StringBuilder piece = new StringBuilder();
+        for (String word : WHITESPACE.split(clause)) {
+            if (!piece.isEmpty() && piece.length() + 1 + word.length() > target) {
+                returnValue.add(piece.toString());
+                piece.setLength(0);
+            }
+            if (!piece.isEmpty())
+                piece.append(' ');
+            piece.append(word);
+        }
+        if (!piece.isEmpty())
+            returnValue.add(piece.toString());
+        return returnValue;
+    }
+}
@@ -0,0 +1,173 @@
+package de.vrauchhaupt.chatbotfx.manager;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntSupplier;
+
+/**
+ * Counters of the tts pipeline: how long the LLM was held back by a full queue, how long sentences waited for
+ * synthesis, how long synthesis took and how deep the queues are.
+ * <p>
+ * The synthesis times also feed a linear model of the cost of a chunk of text, a fixed overhead per call plus a time
+ * per character, from which {@link #getTargetChunkLength()} is derived. Recent syntheses weigh more than old ones.
+ */
+public class TtsPipelineMetrics {
+
+    public static final int MIN_CHUNK_LENGTH = 40;
+    public static final int MAX_CHUNK_LENGTH = 320;
+    private static final int DEFAULT_CHUNK_LENGTH = 120;
+    private static final int MIN_SAMPLES = 5;
+    private static final double DECAY = 0.95;
+    /**
+     * the overhead shall be at most a quarter of the synthesis time of a chunk
+     */
+    private static final double MAX_OVERHEAD_SHARE = 0.25;
+    /**
+     * a chunk shall be synthesized within this time, so its audio does not come late
+     */
+    private static final double CHUNK_BUDGET_MILLIS = 1500;
+
+    private final Timer backpressure = new Timer();
+    private final Timer queueWait = new Timer();
+    private final Timer slotWait = new Timer();
+    private final Timer synthesis = new Timer();
+    private final AtomicLong cacheHits = new AtomicLong(0);
+    private final IntSupplier produceQueueDepth;
+    private final IntSupplier playQueueDepth;
+    // decayed sums for the least squares fit of millis over characters
+    private double samples = 0;
+    private double sumCharacters = 0;
+    private double sumMillis = 0;
+    private double sumCharactersSquared = 0;
+    private double sumCharactersMillis = 0;
+    private int targetChunkLength = DEFAULT_CHUNK_LENGTH;
+
+    public TtsPipelineMetrics(IntSupplier produceQueueDepth, IntSupplier playQueueDepth) {
+        this.produceQueueDepth = produceQueueDepth;
+        this.playQueueDepth = playQueueDepth;
+    }
+
+    /**
+     * @return time the LLM stream waited, because the queue of sentences to synthesize was full
+     */
+    public Timer getBackpressure() {
+        return backpressure;
+    }
+
+    /**
+     * @return time sentences waited in the queue, until they were taken for synthesis
+     */
+    public Timer getQueueWait() {
+        return queueWait;
+    }
+
+    /**
+     * @return time sentences waited for a free synthesis slot
+     */
+    public Timer getSlotWait() {
+        return slotWait;
+    }
+
+    public Timer getSynthesis() {
+        return synthesis;
+    }
+
+    /**
+     * A text of the given length was synthesized completely in the given time.
+     */
+    public synchronized void recordSynthesizedText(int characters, long nanos) {
+        if (characters <= 0)
+            return;
+        double millis = nanos / 1_000_000d;
+        samples = samples * DECAY + 1;
+        sumCharacters = sumCharacters * DECAY + characters;
+        sumMillis = sumMillis * DECAY + millis;
+        sumCharactersSquared = sumCharactersSquared * DECAY + (double) characters * characters;
+        sumCharactersMillis = sumCharactersMillis * DECAY + characters * millis;
+        targetChunkLength = fitTargetChunkLength();
+    }
+
+    private int fitTargetChunkLength() {
+        if (samples < MIN_SAMPLES)
+            return DEFAULT_CHUNK_LENGTH;
+        double denominator = samples * sumCharactersSquared - sumCharacters * sumCharacters;
+        double millisPerCharacter;
+        double overheadMillis;
+        if (Math.abs(denominator) < 1e-6 * samples * sumCharactersSquared) {
+            // all texts of about the same length, the overhead can't be told apart
+            millisPerCharacter = sumMillis / sumCharacters;
+            overheadMillis = 0;
+        } else {
+            millisPerCharacter = (samples * sumCharactersMillis - sumCharacters * sumMillis) / denominator;
+            overheadMillis = Math.max(0, (sumMillis - millisPerCharacter * sumCharacters) / samples);
+        }
+        if (millisPerCharacter <= 0)
+            return MAX_CHUNK_LENGTH;
+        double lengthForOverhead = overheadMillis * (1 - MAX_OVERHEAD_SHARE) / MAX_OVERHEAD_SHARE / millisPerCharacter;
+        double lengthForBudget = (CHUNK_BUDGET_MILLIS - overheadMillis) / millisPerCharacter;
+        double target = Math.min(Math.max(lengthForOverhead, DEFAULT_CHUNK_LENGTH / 2d), lengthForBudget);
+        return Math.clamp(Math.round(target), MIN_CHUNK_LENGTH, MAX_CHUNK_LENGTH);
+    }
+
+    /**
+     * @return the length of text chunks, which keeps the overhead per synthesis small and the synthesis of one chunk
+     * short enough for its audio to come in time
+     */
+    public synchronized int getTargetChunkLength() {
+        return targetChunkLength;
+    }
+
+    public void recordCacheHit() {
+        cacheHits.incrementAndGet();
+    }
+
+    public long getCacheHits() {
+        return cacheHits.get();
+    }
+
+    public int getProduceQueueDepth() {
+        return produceQueueDepth.getAsInt();
+    }
+
+    public int getPlayQueueDepth() {
+        return playQueueDepth.getAsInt();
+    }
+
+    public String summary() {
+        return "TTS pipeline: queue " + getProduceQueueDepth() + " to synthesize, " + getPlayQueueDepth() + " to play, "
+                + cacheHits.get() + " cache hits, target chunk length " + getTargetChunkLength() + "\n"
+                + "  backpressure " + backpressure + "\n"
+                + "  queue wait   " + queueWait + "\n"
+                + "  slot wait    " + slotWait + "\n"
+                + "  synthesis    " + synthesis;
+    }
+
+    public static class Timer {
+        private final AtomicLong count = new AtomicLong(0);
+        private final AtomicLong totalNanos = new AtomicLong(0);
+        private final AtomicLong maxNanos = new AtomicLong(0);
+
+        public void record(long nanos) {
+            count.incrementAndGet();
+            totalNanos.addAndGet(nanos);
+            maxNanos.accumulateAndGet(nanos, Math::max);
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        public double getAverageMillis() {
+            long tmpCount = count.get();
+            return tmpCount == 0 ? 0 : totalNanos.get() / 1_000_000d / tmpCount;
+        }
+
+        public double getMaxMillis() {
+            return maxNanos.get() / 1_000_000d;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d times, avg %.1f ms, max %.1f ms", getCount(), getAverageMillis(), getMaxMillis());
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package de.vrauchhaupt.chatbotfx.manager;
+
+import de.vrauchhaupt.chatbotfx.IMessaging;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * The jobs of one chat turn: asking ollama, synthesizing the sentences of the answer, summarizing and painting the
+ * picture. They run on virtual threads of the {@link ThreadManager} and are cancelled as one: cancelling the turn runs
+ * the attached cancel actions and interrupts all of its threads, which aborts their blocking calls.
+ * <p>
+ * A turn is done, when none of its jobs runs anymore. Jobs forked into a cancelled turn start interrupted.
+ */
+public class TurnScope implements IMessaging {
+    private static final AtomicInteger NEXT_ID = new AtomicInteger(0);
+
+    private final int id = NEXT_ID.incrementAndGet();
+    private final long startedAtNanos = System.nanoTime();
+    private final AtomicBoolean cancelled = new AtomicBoolean(false);
+    private final AtomicInteger activeJobs = new AtomicInteger(0);
+    private final AtomicInteger forkedJobs = new AtomicInteger(0);
+    private final Map<Thread, String> runningJobs = new ConcurrentHashMap<>();
+    private final List<Runnable> cancelActions = new CopyOnWriteArrayList<>();
+
+    TurnScope() {
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * Starts the job as part of the turn.
+     *
+     * @param onJobFinished may be null
+     */
+    public Thread fork(String jobName, Runnable job, Consumer<Thread> onJobFinished) {
+        // counted before the start, so the turn never looks done between the fork and the start
+        activeJobs.incrementAndGet();
+        forkedJobs.incrementAndGet();
+        return ThreadManager.instance().startThread(jobName + " (turn " + id + ")", () -> {
+            runningJobs.put(Thread.currentThread(), jobName);
+            if (cancelled.get())
+                Thread.currentThread().interrupt();
+            job.run();
+        }, thread -> {
+            runningJobs.remove(thread);
+            activeJobs.decrementAndGet();
+            if (onJobFinished != null)
+                onJobFinished.accept(thread);
+        });
+    }
+
+    /**
+     * The action stops work of the turn, which an interrupt can't stop. It runs right away, if the turn was
+     * cancelled meanwhile.
+     */
+    public void attach(Runnable cancelAction) {
+        cancelActions.add(cancelAction);
+        if (cancelled.get())
+            cancelAction.run();
+    }
+
+    public void cancel() {
+        if (!cancelled.compareAndSet(false, true))
+            return;
+        logLn("Cancelling turn " + id + " with " + runningJobs.size() + " running jobs");
+        for (Runnable cancelAction : cancelActions) {
+            try {
+                cancelAction.run();
+            } catch (Exception e) {
+                logLn("Could not cancel a job of turn " + id, e);
+            }
+        }
+        runningJobs.keySet().forEach(Thread::interrupt);
+    }
+
+    public boolean isCancelled() {
+        return cancelled.get();
+    }
+
+    public void checkNotCancelled() {
+        if (cancelled.get())
+            throw new CancellationException("Turn " + id + " was cancelled");
+    }
+
+    /**
+     * @return true, if no job of the turn runs anymore
+     */
+    public boolean isDone() {
+        return activeJobs.get() == 0;
+    }
+
+    /**
+     * @return the names of the jobs running right now
+     */
+    public List<String> getRunningJobs() {
+        return List.copyOf(runningJobs.values());
+    }
+
+    public int getForkedJobCount() {
+        return forkedJobs.get();
+    }
+
+    @Override
+    public String toString() {
+        return "Turn " + id + ": " + activeJobs.get() + " of " + forkedJobs.get() + " jobs running after "
+                + (System.nanoTime() - startedAtNanos) / 1_000_000 + " ms" + (cancelled.get() ? ", cancelled" : "");
+    }
+}
@@ -0,0 +1,91 @@
+package de.vrauchhaupt.chatbotfx.manager;
+
+import javafx.beans.property.ReadOnlyBooleanProperty;
+import javafx.beans.property.ReadOnlyBooleanWrapper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Counts the work running in the application. The managers begin a {@link WorkTicket} when they start working and
+ * close it when they are done, so {@link #busyProperty()} changes the moment the last work ends, without anyone
+ * looking from time to time.
+ * <p>
+ * The listeners of the property are called on the thread beginning or ending the work, in the order of the changes.
+ * The UI has to switch to the FX thread itself.
+ */
+public class WorkTracker {
+    private static final WorkTracker INSTANCE = new WorkTracker();
+
+    private final ReadOnlyBooleanWrapper busy = new ReadOnlyBooleanWrapper(false);
+    private final List<WorkTicket> openTickets = new ArrayList<>();
+
+    private WorkTracker() {
+    }
+
+    public static WorkTracker instance() {
+        return INSTANCE;
+    }
+
+    /**
+     * @param name tells, what is worked on
+     * @return the ticket to close, when the work has ended
+     */
+    public WorkTicket begin(String name) {
+        WorkTicket ticket = new WorkTicket(name);
+        synchronized (openTickets) {
+            openTickets.add(ticket);
+            busy.set(true);
+        }
+        return ticket;
+    }
+
+    private void end(WorkTicket ticket) {
+        synchronized (openTickets) {
+            openTickets.remove(ticket);
+            busy.set(!openTickets.isEmpty());
+        }
+    }
+
+    public ReadOnlyBooleanProperty busyProperty() {
+        return busy.getReadOnlyProperty();
+    }
+
+    public boolean isBusy() {
+        synchronized (openTickets) {
+            return !openTickets.isEmpty();
+        }
+    }
+
+    /**
+     * @return the names of the work running now
+     */
+    public List<String> getOpenWork() {
+        synchronized (openTickets) {
+            return openTickets.stream().map(WorkTicket::getName).toList();
+        }
+    }
+
+    public static class WorkTicket implements AutoCloseable {
+        private final String name;
+        private final AtomicBoolean closed = new AtomicBoolean(false);
+
+        private WorkTicket(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Ends the work. Closing the ticket again does nothing.
+         */
+        @Override
+        public void close() {
+            if (!closed.getAndSet(true))
+                INSTANCE.end(this);
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package de.vrauchhaupt.chatbotfx.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Chooses the part of the chat history sent to the LLM by a token budget of the model card: the pinned prefix
+ * (system prompt and summary) and the newest messages that fit.
+ * <p>
+ * The start of the window does not move with every message, because that would change the start of the prompt every
+ * turn and ollama could not use its prompt cache. Instead the window grows until the budget is reached and then drops
+ * a whole block of old messages at once, down to {@link #LOW_WATERMARK} of the budget.
+ * <p>
+ * Token counts are cached per message. Ollama reports the exact count for its answers, all other messages are
+ * estimated by a characters per token ratio, which is calibrated from the answers.
+ */
+public class ChatContextWindow {
+
+    public static final double LOW_WATERMARK = 0.75;
+    /**
+     * tokens the chat template adds around every message for the role
+     */
+    private static final int MESSAGE_OVERHEAD_TOKENS = 4;
+    private static final double DEFAULT_CHARS_PER_TOKEN = 4.0;
+    private static final double CALIBRATION_WEIGHT = 0.2;
+
+    private volatile double charsPerToken = DEFAULT_CHARS_PER_TOKEN;
+    private int windowStartId = -1;
+
+    /**
+     * @param history        the full chat history
+     * @param tokenBudget    maximum tokens of the returned messages together with the reserved tokens
+     * @param reservedTokens tokens of the messages, which are going to be added to the returned ones
+     * @return the pinned prefix and the newest messages of the history fitting into the budget
+     */
+    public synchronized List<IndexedOllamaChatMessage> select(List<IndexedOllamaChatMessage> history,
+                                                              int tokenBudget,
+                                                              int reservedTokens) {
+        int pinnedPrefixLength = ChatPromptLayout.pinnedPrefixLength(history);
+        int available = tokenBudget - reservedTokens;
+        for (int i = 0; i < pinnedPrefixLength; i++)
+            available -= tokensOf(history.get(i));
+
+        // the window starts at the same message as before, or the next one still there
+        int start = pinnedPrefixLength;
+        while (start < history.size() && history.get(start).getId() < windowStartId)
+            start++;
+        int bodyTokens = 0;
+        for (int i = start; i < history.size(); i++)
+            bodyTokens += tokensOf(history.get(i));
+        if (bodyTokens > available) {
+            int target = (int) (available * LOW_WATERMARK);
+            while (start < history.size() - 1 && bodyTokens > target) {
+                bodyTokens -= tokensOf(history.get(start));
+                start++;
+            }
+        }
+        windowStartId = start < history.size() ? history.get(start).getId() : -1;
+
+        List<IndexedOllamaChatMessage> returnValue = new ArrayList<>(pinnedPrefixLength + history.size() - start);
+        returnValue.addAll(history.subList(0, pinnedPrefixLength));
+        returnValue.addAll(history.subList(start, history.size()));
+        return returnValue;
+    }
+
+    /**
+     * @return the amount of messages behind the pinned prefix, which are no longer part of the window
+     */
+    public synchronized int agedOutCount(List<IndexedOllamaChatMessage> history) {
+        int pinnedPrefixLength = ChatPromptLayout.pinnedPrefixLength(history);
+        int end = pinnedPrefixLength;
+        while (end < history.size() && history.get(end).getId() < windowStartId)
+            end++;
+        return end - pinnedPrefixLength;
+    }
+
+    public int tokensOf(IndexedOllamaChatMessage message) {
+        return message.getTokenCount(charsPerToken) + MESSAGE_OVERHEAD_TOKENS;
+    }
+
+    public int estimateTokens(String text) {
+        if (text == null || text.isEmpty())
+            return 0;
+        return (int) Math.ceil(text.length() / charsPerToken) + MESSAGE_OVERHEAD_TOKENS;
+    }
+
+    /**
+     * Adjusts the characters per token ratio by an answer of the LLM and the token count ollama reported for it.
+     */
+    public void calibrate(int chars, int tokens) {
+        if (chars <= 0 || tokens <= 0)
+            return;
+        charsPerToken = charsPerToken * (1 - CALIBRATION_WEIGHT) + ((double) chars / tokens) * CALIBRATION_WEIGHT;
+    }
+
+    public synchronized void reset() {
+        windowStartId = -1;
+    }
+}
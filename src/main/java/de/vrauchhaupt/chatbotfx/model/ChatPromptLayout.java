@@ -0,0 +1,115 @@
+package de.vrauchhaupt.chatbotfx.model;
+
+import de.vrauchhaupt.chatbotfx.IMessaging;
+import io.github.ollama4j.models.chat.OllamaChatMessage;
+import io.github.ollama4j.models.chat.OllamaChatMessageRole;
+import io.github.ollama4j.models.chat.OllamaChatResponseModel;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Lays out the chat history for a request to ollama, so that consecutive requests share as long a prefix as possible
+ * and ollama can reuse its prompt cache instead of evaluating the whole prompt again.
+ * <ul>
+ *     <li>pinned prefix: the system prompt of the model card and the rolling summary of the messages, which dropped
+ *     out of the context window. Both are only changed by a summarization.</li>
+ *     <li>append only body: all other messages in the order they were written. System notices given during the chat
+ *     are sent as user messages, because many chat templates move system messages to the start of the prompt.</li>
+ * </ul>
+ * Summarizations change the prefix and so invalidate the cache. They only happen after the context window dropped a
+ * whole block of old messages, which invalidates the cache anyway.
+ */
+public class ChatPromptLayout implements IMessaging {
+
+    public static final String SUMMARY_PREFIX = "Summary of the story so far: ";
+    public static final String SYSTEM_NOTICE_PREFIX = "System notice: ";
+
+    private final List<OllamaChatMessage> lastContext = new ArrayList<>();
+    private String lastModel = null;
+    private long lastContextTokens = 0;
+    private long lastContextChars = 0;
+
+    public static boolean isSummary(OllamaChatMessage message) {
+        return isSystem(message) && message.getResponse() != null && message.getResponse().startsWith(SUMMARY_PREFIX);
+    }
+
+    private static boolean isSystem(OllamaChatMessage message) {
+        return message.getRole() != null && OllamaChatMessageRole.SYSTEM.getRoleName().equals(message.getRole().getRoleName());
+    }
+
+    /**
+     * @return the amount of messages at the start of the history, which belong to the pinned prefix
+     */
+    public static int pinnedPrefixLength(List<IndexedOllamaChatMessage> history) {
+        int returnValue = 0;
+        while (returnValue < history.size()) {
+            OllamaChatMessage message = history.get(returnValue).getChatMessage();
+            if (!((returnValue == 0 && isSystem(message)) || isSummary(message)))
+                break;
+            returnValue++;
+        }
+        return returnValue;
+    }
+
+    public List<OllamaChatMessage> layout(List<IndexedOllamaChatMessage> history) {
+        List<OllamaChatMessage> returnValue = new ArrayList<>(history.size());
+        int pinnedPrefixLength = pinnedPrefixLength(history);
+        for (int i = 0; i < history.size(); i++) {
+            OllamaChatMessage message = history.get(i).getChatMessage();
+            if (i < pinnedPrefixLength || !isSystem(message))
+                returnValue.add(new OllamaChatMessage(message.getRole(), message.getResponse()));
+            else
+                returnValue.add(new OllamaChatMessage(OllamaChatMessageRole.USER, SYSTEM_NOTICE_PREFIX + message.getResponse()));
+        }
+        return returnValue;
+    }
+
+    /**
+     * Logs, how much of the prompt ollama could take from its cache. Ollama only reports the evaluated prompt tokens,
+     * so the reused tokens are estimated from the part of the previous request and answer this prompt starts with.
+     */
+    public synchronized void reportCacheUsage(String model,
+                                              List<OllamaChatMessage> prompt,
+                                              OllamaChatResponseModel response) {
+        if (!Objects.equals(model, lastModel))
+            clearCacheState();
+        int sharedMessages = 0;
+        long sharedChars = 0;
+        while (sharedMessages < prompt.size() && sharedMessages < lastContext.size()
+                && isSameMessage(prompt.get(sharedMessages), lastContext.get(sharedMessages))) {
+            sharedChars += length(prompt.get(sharedMessages));
+            sharedMessages++;
+        }
+        long reusedTokens = lastContextChars == 0 ? 0 : lastContextTokens * sharedChars / lastContextChars;
+        long evaluatedTokens = response.getPromptEvalCount() == null ? 0 : response.getPromptEvalCount();
+        long generatedTokens = response.getEvalCount() == null ? 0 : response.getEvalCount();
+        logLn("Prompt cache: " + sharedMessages + " of " + prompt.size() + " messages unchanged, about " + reusedTokens
+                + " prompt tokens reused, " + evaluatedTokens + " evaluated, " + generatedTokens + " generated");
+
+        lastModel = model;
+        lastContext.clear();
+        lastContext.addAll(prompt);
+        if (response.getMessage() != null)
+            lastContext.add(new OllamaChatMessage(OllamaChatMessageRole.ASSISTANT, response.getMessage().getResponse()));
+        lastContextTokens = reusedTokens + evaluatedTokens + generatedTokens;
+        lastContextChars = lastContext.stream().mapToLong(ChatPromptLayout::length).sum();
+    }
+
+    public synchronized void clearCacheState() {
+        lastModel = null;
+        lastContext.clear();
+        lastContextTokens = 0;
+        lastContextChars = 0;
+    }
+
+    private static boolean isSameMessage(OllamaChatMessage a, OllamaChatMessage b) {
+        return Objects.equals(a.getRole().getRoleName(), b.getRole().getRoleName())
+                && Objects.equals(a.getResponse(), b.getResponse());
+    }
+
+    private static long length(OllamaChatMessage message) {
+        return message.getResponse() == null ? 0 : message.getResponse().length();
+    }
+}
@@ -5,8 +5,6 @@ import de.vrauchhaupt.chatbotfx.helper.JsonHelper;
 import de.vrauchhaupt.chatbotfx.manager.*;
 import io.github.ollama4j.models.chat.OllamaChatMessage;
 import io.github.ollama4j.models.chat.OllamaChatMessageRole;
-import javafx.collections.FXCollections;
-import javafx.collections.ObservableList;
 
 import java.io.IOException;
 import java.nio.file.DirectoryStream;
@@ -14,18 +12,40 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Function;
 
+/**
+ * The chat history. It is changed by the printing, asking and summary threads and by the FX thread, so all changes
+ * are commands, which one writer thread applies in the order they were given, to an {@link IndexedMessageStore}. An
+ * immutable snapshot of the history is built only when it is read after a change, readers take a current snapshot
+ * without any lock.
+ * <p>
+ * A changed message is replaced by a new one with the same id, so a message in a snapshot never changes.
+ */
 public class ChatViewModel implements IMessaging {
 
     private static ChatViewModel INSTANCE = null;
 
     private final ChatbotLlmStreamHandler streamHandler = new ChatbotLlmStreamHandler();
-    private final ObservableList<IndexedOllamaChatMessage> messages = FXCollections.observableArrayList();
+    private final ChatContextWindow contextWindow = new ChatContextWindow();
+    private final Queue<HistoryCommand<?>> commands = new ConcurrentLinkedQueue<>();
+    private final ControlledThread writerThread;
+    // only used by the writer thread
+    private final IndexedMessageStore messages = new IndexedMessageStore();
+    private final Set<Integer> completedAssistantMessages = new HashSet<>();
+    private volatile List<IndexedOllamaChatMessage> snapshot = List.of();
+    private volatile boolean snapshotStale = false;
+    private volatile int historySize = 0;
     private int curImageIndex = 1;
 
     private ChatViewModel() {
+        writerThread = ThreadManager.instance().startEndlessThread("Chat History Writer", this::applyCommands);
     }
 
     public static ChatViewModel instance() {
@@ -35,46 +55,89 @@ public class ChatViewModel implements IMessaging {
     }
 
 
+    /**
+     * Queues the change of the history for the writer thread.
+     *
+     * @return completes, when the change is applied and seen by readers
+     */
+    private <T> CompletableFuture<T> submit(Function<IndexedMessageStore, T> change) {
+        HistoryCommand<T> command = new HistoryCommand<>(change);
+        commands.add(command);
+        writerThread.signal();
+        return command.result;
+    }
+
+    private void applyCommands(ControlledThread thread) {
+        List<HistoryCommand<?>> applied = new ArrayList<>();
+        HistoryCommand<?> command;
+        while ((command = commands.poll()) != null) {
+            command.apply(messages);
+            applied.add(command);
+        }
+        if (applied.isEmpty())
+            return;
+        historySize = messages.size();
+        // the snapshot is built by the next reader, not for every sentence streamed into the history
+        if (messages.hasCurrentSnapshot()) {
+            snapshot = messages.snapshot();
+            snapshotStale = false;
+        } else {
+            snapshotStale = true;
+        }
+        applied.forEach(HistoryCommand::complete);
+    }
+
     public void clearHistory() {
-        messages.clear();
+        submit(history -> {
+            history.clear();
+            completedAssistantMessages.clear();
+            contextWindow.reset();
+            return null;
+        }).join();
         resetCurImageIndex();
     }
 
+    /**
+     * @return the history as the writer published it last, it does not change anymore
+     */
     public List<IndexedOllamaChatMessage> getFullHistory() {
-        return new ArrayList<>(messages);
+        if (!snapshotStale)
+            return snapshot;
+        return submit(IndexedMessageStore::snapshot).join();
     }
 
     public int getFullHistorySize() {
-        return messages.size();
+        return historySize;
     }
 
     public List<IndexedOllamaChatMessage> trimmedHistory() {
-        List<IndexedOllamaChatMessage> returnValue = new ArrayList<>();
-        if (messages.isEmpty())
-            return returnValue;
-
-        returnValue.addAll(messages);
-        /*if (SettingsManager.instance().getMessagesToStripForLLM() <= 0 ||
-                messages.size() <= SettingsManager.instance().getMessagesToStripForLLM() + 14)
-            returnValue.addAll(messages);
-        else {
-            IndexedOllamaChatMessage firstMessage = messages.getFirst(); // if it is a system (what should be, this is important)
-            if (firstMessage.getChatMessage().getRole().getRoleName().equals(OllamaChatMessageRole.SYSTEM.getRoleName())) {
-                returnValue.add(firstMessage);
-            }
-            returnValue.addAll(messages.subList(Math.max(0, messages.size() - SettingsManager.instance().getMessagesToStripForLLM()), messages.size()));
-        }*/
-        return returnValue;
+        return trimmedHistory(0);
+    }
+
+    /**
+     * @param reservedTokens tokens of the messages, which are going to be sent together with the history
+     * @return the pinned system prompt and summary and the newest messages fitting into the token budget of the
+     * selected model card
+     */
+    public List<IndexedOllamaChatMessage> trimmedHistory(int reservedTokens) {
+        if (historySize == 0)
+            return new ArrayList<>();
+        LlmModelCardJson selectedLlModelCard = LlmModelCardManager.instance().getSelectedLlModelCard();
+        int tokenBudget = selectedLlModelCard == null || selectedLlModelCard.getContextTokenBudget() <= 0 ?
+                LlmModelCardJson.DEFAULT_CONTEXT_TOKEN_BUDGET :
+                selectedLlModelCard.getContextTokenBudget();
+        return contextWindow.select(getFullHistory(), tokenBudget, reservedTokens);
     }
 
     public void ask(String systemPrompt, String userPrompt) {
 
         LlmModelCardJson selectedLlModelCard = LlmModelCardManager.instance().getSelectedLlModelCard();
-        if (trimmedHistory().isEmpty())
+        int reservedTokens = contextWindow.estimateTokens(systemPrompt) + contextWindow.estimateTokens(userPrompt);
+        if (historySize == 0)
             OllamaManager.instance().systemNoticeAndAsk(
                     selectedLlModelCard.getSystem().replace("${NAME}", selectedLlModelCard.getModelCardName()),
                     userPrompt,
-                    trimmedHistory(),
+                    new ArrayList<>(),
                     selectedLlModelCard,
                     streamHandler,
                     () -> logLn("Could not ask LLM '" + userPrompt + "'"));
@@ -82,7 +145,7 @@ public class ChatViewModel implements IMessaging {
             OllamaManager.instance().systemNoticeAndAsk(
                     systemPrompt,
                     userPrompt,
-                    trimmedHistory(),
+                    trimmedHistory(reservedTokens),
                     selectedLlModelCard,
                     streamHandler,
                     () -> logLn("Could not ask LLM '" + userPrompt + "'"));
@@ -99,7 +162,7 @@ public class ChatViewModel implements IMessaging {
             Path messageJsonFile = dirToSave.resolve(selectedLlModelCard.getModelCardName() + ".messages");
             Files.deleteIfExists(messageJsonFile);
             MessageContainerJson valueToWrite = new MessageContainerJson();
-            valueToWrite.setMessages(messages.stream()
+            valueToWrite.setMessages(getFullHistory().stream()
                     .map(IndexedOllamaChatMessage::getChatMessage)
                     .toList());
             JsonHelper.objectWriter().writeValue(messageJsonFile.toFile(), valueToWrite);
@@ -150,15 +213,19 @@ public class ChatViewModel implements IMessaging {
         Path dirToLoadFrom = modelCardsDirectory.resolve(selectedLlModelCard.getModelCardName() + "_save");
         Path messageJsonFile = dirToLoadFrom.resolve(selectedLlModelCard.getModelCardName() + ".messages");
         MessageContainerJson ollamaChatMessages = JsonHelper.loadFromFile(messageJsonFile, MessageContainerJson.class);
-        if (ollamaChatMessages == null)
-            messages.clear();
-        else
-            messages.setAll(ollamaChatMessages.getMessages().stream()
-                    .map(IndexedOllamaChatMessage::new)
-                    .toList());
+        List<IndexedOllamaChatMessage> loadedMessages = ollamaChatMessages == null ? List.of() :
+                ollamaChatMessages.getMessages().stream()
+                        .map(IndexedOllamaChatMessage::new)
+                        .toList();
+        submit(history -> {
+            contextWindow.reset();
+            history.clear();
+            loadedMessages.forEach(history::put);
+            return null;
+        }).join();
         deleteExistingRuntimeImages();
 
-        for (IndexedOllamaChatMessage ollamaChatMessage : messages) {
+        for (IndexedOllamaChatMessage ollamaChatMessage : loadedMessages) {
             printer.renderOnFxThread(DisplayRole.of(ollamaChatMessage.getChatMessage().getRole()),
                     ollamaChatMessage.getChatMessage().getResponse(),
                     ollamaChatMessage.getId());
@@ -197,43 +264,144 @@ public class ChatViewModel implements IMessaging {
     }
 
     public void setMessageOfId(int chatMessageIndex, String newMessage) {
-        messages.stream().filter(x -> x.getId() == chatMessageIndex)
-                .forEach(x -> x.getChatMessage().setResponse(newMessage));
+        submit(history -> {
+            IndexedOllamaChatMessage message = history.get(chatMessageIndex);
+            if (message != null)
+                history.put(message.withResponse(newMessage));
+            return null;
+        });
     }
 
-    public void appendSystemOrPrompt(OllamaChatMessageRole role, String prompt) {
+    public IndexedOllamaChatMessage appendSystemOrPrompt(OllamaChatMessageRole role, String prompt) {
         OllamaChatMessage ollamaChatMessage = new OllamaChatMessage();
         ollamaChatMessage.setRole(role);
         ollamaChatMessage.setResponse(prompt);
-        messages.add(new IndexedOllamaChatMessage(ollamaChatMessage));
+        IndexedOllamaChatMessage returnValue = new IndexedOllamaChatMessage(ollamaChatMessage);
+        submit(history -> {
+            history.put(returnValue);
+            return null;
+        });
+        return returnValue;
     }
 
-    public synchronized void appendAssistant(TtsSentence ttsSentence) {
-        IndexedOllamaChatMessage indexedOllamaChatMessage = messages.stream().filter(x -> x.getId() == ttsSentence.getChatMessageIndex())
-                .findFirst().orElse(null);
-        if (indexedOllamaChatMessage == null) {
-            OllamaChatMessage ollamaChatMessage = new OllamaChatMessage();
-            ollamaChatMessage.setRole(OllamaChatMessageRole.ASSISTANT);
-            ollamaChatMessage.setResponse(ttsSentence.getText());
-            messages.add(new IndexedOllamaChatMessage(ttsSentence.getChatMessageIndex(), ollamaChatMessage));
-        } else {
-            indexedOllamaChatMessage.getChatMessage().setResponse(
-                    indexedOllamaChatMessage.getChatMessage().getResponse() + " " + ttsSentence.getText()
-            );
-        }
+    /**
+     * Stores the complete, unchanged answer of the LLM as the assistant message. The sentences which are printed
+     * afterward are cleaned for display and speech and are not added to this message anymore. Returns, when the
+     * answer is part of the history.
+     */
+    public void completeAssistant(int chatMessageIndex, String rawResponse, Integer tokenCount) {
+        submit(history -> {
+            completedAssistantMessages.add(chatMessageIndex);
+            IndexedOllamaChatMessage completed = new IndexedOllamaChatMessage(chatMessageIndex,
+                    new OllamaChatMessage(OllamaChatMessageRole.ASSISTANT, rawResponse));
+            history.put(completed);
+            if (tokenCount != null && rawResponse != null) {
+                completed.setTokenCount(tokenCount);
+                contextWindow.calibrate(rawResponse.length(), tokenCount);
+            }
+            return null;
+        }).join();
+    }
+
+    public void appendAssistant(TtsSentence ttsSentence) {
+        submit(history -> {
+            if (completedAssistantMessages.contains(ttsSentence.getChatMessageIndex()))
+                return null;
+            IndexedOllamaChatMessage message = history.get(ttsSentence.getChatMessageIndex());
+            if (message == null) {
+                OllamaChatMessage ollamaChatMessage = new OllamaChatMessage();
+                ollamaChatMessage.setRole(OllamaChatMessageRole.ASSISTANT);
+                ollamaChatMessage.setResponse(ttsSentence.getText());
+                history.put(new IndexedOllamaChatMessage(ttsSentence.getChatMessageIndex(), ollamaChatMessage));
+            } else {
+                history.put(message.withResponse(message.getChatMessage().getResponse() + " " + ttsSentence.getText()));
+            }
+            return null;
+        });
     }
 
     public void removeAllMessages(Set<Integer> messageIndexesToDelete) {
-        List<IndexedOllamaChatMessage> messagesToRemove = messages.stream()
-                .filter(x -> messageIndexesToDelete.contains(x.getId()))
-                .toList();
-        messages.removeAll(messagesToRemove);
+        submit(history -> {
+            messageIndexesToDelete.forEach(history::remove);
+            return null;
+        });
+    }
+
+    /**
+     * @param maxMessages maximum amount of aged out messages to fold, 0 for all
+     * @return the messages, which dropped out of the context window and are not summarized yet, or null, if there are
+     * none
+     */
+    public SummaryFold prepareSummaryFold(int maxMessages) {
+        List<IndexedOllamaChatMessage> history = getFullHistory();
+        int pinnedPrefixLength = ChatPromptLayout.pinnedPrefixLength(history);
+        int agedOutCount = contextWindow.agedOutCount(history);
+        if (maxMessages > 0)
+            agedOutCount = Math.min(agedOutCount, maxMessages);
+        if (agedOutCount == 0)
+            return null;
+        IndexedOllamaChatMessage systemPrompt = null;
+        IndexedOllamaChatMessage previousSummary = null;
+        for (IndexedOllamaChatMessage message : history.subList(0, pinnedPrefixLength)) {
+            if (ChatPromptLayout.isSummary(message.getChatMessage()))
+                previousSummary = message;
+            else
+                systemPrompt = message;
+        }
+        return new SummaryFold(systemPrompt, previousSummary, history.subList(pinnedPrefixLength, pinnedPrefixLength + agedOutCount));
+    }
+
+    /**
+     * Replaces the previous summary and the aged out messages of the fold by the new summary in one change of the
+     * history. Nothing is changed, if one of these messages was edited or deleted since the fold was prepared: an
+     * edited message was replaced by a new one, so all of them must still be the very same messages.
+     *
+     * @return true, if the summary was applied
+     */
+    public boolean applySummaryFold(SummaryFold summaryFold, String summary) {
+        List<IndexedOllamaChatMessage> replacedMessages = summaryFold.getReplacedMessages();
+        return submit(history -> {
+            for (IndexedOllamaChatMessage replaced : replacedMessages) {
+                if (history.get(replaced.getId()) != replaced)
+                    return false;
+            }
+            // the summary takes the id and so the place of the first replaced message
+            IndexedOllamaChatMessage firstReplaced = replacedMessages.getFirst();
+            OllamaChatMessage summaryMessage = new OllamaChatMessage(OllamaChatMessageRole.SYSTEM, ChatPromptLayout.SUMMARY_PREFIX + summary);
+            for (IndexedOllamaChatMessage replaced : replacedMessages.subList(1, replacedMessages.size()))
+                history.remove(replaced.getId());
+            history.put(new IndexedOllamaChatMessage(firstReplaced.getId(), summaryMessage));
+            return true;
+        }).join();
     }
 
-    public void replaceChatHistory(ArrayList<IndexedOllamaChatMessage> messagesToSummarize, OllamaChatMessage summarizing) {
-        IndexedOllamaChatMessage firstElement = messagesToSummarize.getFirst();
-        int firstElementIndex = messages.indexOf(firstElement);
-        messages.removeAll(messagesToSummarize);
-        messages.add(firstElementIndex, new IndexedOllamaChatMessage(firstElement.getId(), summarizing));
+    /**
+     * A change of the history and its outcome, given to the callers once the change is published.
+     */
+    private static class HistoryCommand<T> {
+        private final Function<IndexedMessageStore, T> change;
+        private final CompletableFuture<T> result = new CompletableFuture<>();
+        private T value = null;
+        private RuntimeException failure = null;
+
+        private HistoryCommand(Function<IndexedMessageStore, T> change) {
+            this.change = change;
+        }
+
+        private void apply(IndexedMessageStore history) {
+            try {
+                value = change.apply(history);
+            } catch (RuntimeException e) {
+                failure = e;
+                ThreadManager.instance().uncaughtException(Thread.currentThread(), e);
+            }
+        }
+
+        private void complete() {
+            if (failure != null)
+                result.completeExceptionally(failure);
+            else
+                result.complete(value);
+        }
     }
 }
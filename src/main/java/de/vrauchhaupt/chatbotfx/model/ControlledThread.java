@@ -5,9 +5,24 @@ import de.vrauchhaupt.chatbotfx.manager.ThreadManager;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Consumer;
 
+/**
+ * Runs its task again and again, until it is stopped. Between two runs the thread sleeps, until {@link #signal()} tells
+ * it, that there is new work, so an idle thread takes no CPU and new work is picked up at once. A task, which has to
+ * look again at a known time, asks for it with {@link #wakeUpAfter(long)}.
+ * <p>
+ * A signal given while the task runs is not lost, the next wait returns at once.
+ */
 public class ControlledThread extends Thread {
+    private static final long PAUSE_MILLIS = 75;
+
     private final Consumer<ControlledThread> task;
+    private final Object signalLock = new Object();
     AtomicBoolean goon = new AtomicBoolean(true);
+    private boolean signalled = false;
+    /**
+     * only used by the thread itself, 0 waits for a signal only
+     */
+    private long wakeUpAfterMillis = 0;
 
     public ControlledThread( Consumer<ControlledThread> task) {
         super(() -> runInternally());
@@ -19,24 +34,68 @@ public class ControlledThread extends Thread {
         while (thread.shallThreadRun()) {
             try {
                 thread.task.accept(thread);
-                thread.waitAWhile();
+                thread.awaitSignal();
             } catch (Exception e) {
                 ThreadManager.instance().uncaughtException(thread, e);
             }
         }
     }
 
+    /**
+     * Wakes the thread to run its task again.
+     */
+    public void signal() {
+        synchronized (signalLock) {
+            signalled = true;
+            signalLock.notifyAll();
+        }
+    }
+
+    /**
+     * The task runs again after the given time at the latest. Only to be called by the task itself.
+     */
+    public void wakeUpAfter(long millis) {
+        millis = Math.max(1, millis);
+        wakeUpAfterMillis = wakeUpAfterMillis == 0 ? millis : Math.min(wakeUpAfterMillis, millis);
+    }
+
+    private void awaitSignal() {
+        long deadline = wakeUpAfterMillis == 0 ? 0 : System.currentTimeMillis() + wakeUpAfterMillis;
+        wakeUpAfterMillis = 0;
+        synchronized (signalLock) {
+            try {
+                while (!signalled && shallThreadRun()) {
+                    if (deadline == 0) {
+                        signalLock.wait();
+                    } else {
+                        long remaining = deadline - System.currentTimeMillis();
+                        if (remaining <= 0)
+                            break;
+                        signalLock.wait(remaining);
+                    }
+                }
+            } catch (InterruptedException e) {
+                stopThread();
+            }
+            signalled = false;
+        }
+    }
+
     public void stopThread() {
         this.goon.set(false);
+        signal();
     }
 
     public boolean shallThreadRun() {
         return this.goon.get();
     }
 
+    /**
+     * Pauses the task shortly, used to pace the printing of words, not to wait for work.
+     */
     public void waitAWhile() {
         try {
-            Thread.sleep(75);
+            Thread.sleep(PAUSE_MILLIS);
         } catch (InterruptedException e) {
             stopThread();
         }
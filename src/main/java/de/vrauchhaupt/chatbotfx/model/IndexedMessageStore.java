@@ -0,0 +1,196 @@
+package de.vrauchhaupt.chatbotfx.model;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The messages of the chat in their order, found by their id in constant time. The order is kept in an array, a
+ * removed message leaves a hole, which is closed when the holes outnumber the messages. The position of a message in
+ * the array is found by an open addressing map from id to position, which needs no boxing of the ids.
+ * <p>
+ * {@link #snapshot()} builds the list of the messages only when it is asked for and keeps it until the next change.
+ * Not thread safe, the {@link ChatViewModel} changes it from its writer thread only.
+ */
+public class IndexedMessageStore {
+    private static final int FREE = Integer.MIN_VALUE;
+    private static final int DELETED = Integer.MIN_VALUE + 1;
+    private static final int MIN_CAPACITY = 16;
+    private static final int MIN_HOLES_TO_COMPACT = 32;
+
+    private IndexedOllamaChatMessage[] sequence = new IndexedOllamaChatMessage[MIN_CAPACITY];
+    private int end = 0;
+    private int size = 0;
+    private int[] keys;
+    private int[] positions;
+    private int usedKeys = 0;
+    private List<IndexedOllamaChatMessage> snapshot = List.of();
+
+    public IndexedMessageStore() {
+        allocateMap(MIN_CAPACITY * 2);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return the message of the id, null, if there is none
+     */
+    public IndexedOllamaChatMessage get(int id) {
+        int slot = findSlot(id);
+        return slot < 0 ? null : sequence[positions[slot]];
+    }
+
+    public boolean contains(int id) {
+        return findSlot(id) >= 0;
+    }
+
+    /**
+     * Adds the message at the end, or replaces the message with the same id at its place.
+     */
+    public void put(IndexedOllamaChatMessage message) {
+        int id = checkId(message.getId());
+        int slot = findSlot(id);
+        if (slot >= 0) {
+            sequence[positions[slot]] = message;
+        } else {
+            if (end == sequence.length)
+                sequence = Arrays.copyOf(sequence, sequence.length * 2);
+            sequence[end] = message;
+            insertKey(id, end);
+            end++;
+            size++;
+        }
+        snapshot = null;
+    }
+
+    /**
+     * @return false, if there was no message with the id
+     */
+    public boolean remove(int id) {
+        int slot = findSlot(id);
+        if (slot < 0)
+            return false;
+        sequence[positions[slot]] = null;
+        keys[slot] = DELETED;
+        size--;
+        snapshot = null;
+        int holes = end - size;
+        if (holes >= MIN_HOLES_TO_COMPACT && holes > size)
+            compact();
+        return true;
+    }
+
+    public void clear() {
+        Arrays.fill(sequence, 0, end, null);
+        end = 0;
+        size = 0;
+        allocateMap(MIN_CAPACITY * 2);
+        snapshot = List.of();
+    }
+
+    /**
+     * @return the messages in their order. The list does not change anymore.
+     */
+    public List<IndexedOllamaChatMessage> snapshot() {
+        if (snapshot == null) {
+            IndexedOllamaChatMessage[] messages = new IndexedOllamaChatMessage[size];
+            int index = 0;
+            for (int i = 0; i < end; i++) {
+                if (sequence[i] != null)
+                    messages[index++] = sequence[i];
+            }
+            snapshot = Collections.unmodifiableList(Arrays.asList(messages));
+        }
+        return snapshot;
+    }
+
+    /**
+     * @return true, if {@link #snapshot()} returns the list built before, without building a new one
+     */
+    public boolean hasCurrentSnapshot() {
+        return snapshot != null;
+    }
+
+    private static int checkId(int id) {
+        if (id == FREE || id == DELETED)
+            throw new IllegalArgumentException("Message id " + id + " is reserved");
+        return id;
+    }
+
+    private static int hash(int id) {
+        int h = id * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * @return the slot of the id in the map, -1, if it is not there
+     */
+    private int findSlot(int id) {
+        if (id == FREE || id == DELETED)
+            return -1;
+        int mask = keys.length - 1;
+        for (int slot = hash(id) & mask; ; slot = (slot + 1) & mask) {
+            if (keys[slot] == id)
+                return slot;
+            if (keys[slot] == FREE)
+                return -1;
+        }
+    }
+
+    private void insertKey(int id, int position) {
+        // deleted slots are counted as used, so a probe always ends at a free slot
+        if ((usedKeys + 1) * 2 > keys.length)
+            rehash();
+        int mask = keys.length - 1;
+        int slot = hash(id) & mask;
+        while (keys[slot] != FREE && keys[slot] != DELETED)
+            slot = (slot + 1) & mask;
+        if (keys[slot] == FREE)
+            usedKeys++;
+        keys[slot] = id;
+        positions[slot] = position;
+    }
+
+    private void allocateMap(int capacity) {
+        keys = new int[capacity];
+        positions = new int[capacity];
+        Arrays.fill(keys, FREE);
+        usedKeys = 0;
+    }
+
+    /**
+     * Builds the map again, without the deleted slots and with room for twice the messages.
+     */
+    private void rehash() {
+        int capacity = MIN_CAPACITY * 2;
+        while (capacity < (size + 1) * 4)
+            capacity *= 2;
+        allocateMap(capacity);
+        for (int i = 0; i < end; i++) {
+            if (sequence[i] != null)
+                insertKey(sequence[i].getId(), i);
+        }
+    }
+
+    /**
+     * Closes the holes of removed messages.
+     */
+    private void compact() {
+        int index = 0;
+        for (int i = 0; i < end; i++) {
+            if (sequence[i] != null)
+                sequence[index++] = sequence[i];
+        }
+        Arrays.fill(sequence, index, end, null);
+        end = index;
+        if (sequence.length > MIN_CAPACITY && end * 4 < sequence.length)
+            sequence = Arrays.copyOf(sequence, Math.max(MIN_CAPACITY, sequence.length / 2));
+        rehash();
+    }
+}
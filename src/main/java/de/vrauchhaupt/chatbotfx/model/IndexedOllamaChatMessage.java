@@ -3,15 +3,20 @@ package de.vrauchhaupt.chatbotfx.model;
 import io.github.ollama4j.models.chat.OllamaChatMessage;
 
 import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class IndexedOllamaChatMessage {
-    private static int ID_COUNTER = 0;
+    private static final AtomicInteger ID_COUNTER = new AtomicInteger(0);
     private final int id;
     private final OllamaChatMessage chatMessage;
+    private int tokenCount = -1;
+    private int tokenCountLength = -1;
+    private double tokenCountCharsPerToken = 0;
+    private boolean tokenCountReported = false;
 
     public static int newId()
     {
-        return ++ID_COUNTER;
+        return ID_COUNTER.incrementAndGet();
     }
 
     public IndexedOllamaChatMessage( int id, OllamaChatMessage chatMessage) {
@@ -32,6 +37,38 @@ public class IndexedOllamaChatMessage {
         return chatMessage;
     }
 
+    /**
+     * @return a new message with the same id and role and the given text
+     */
+    public IndexedOllamaChatMessage withResponse(String response) {
+        return new IndexedOllamaChatMessage(id, new OllamaChatMessage(chatMessage.getRole(), response));
+    }
+
+    /**
+     * @param charsPerToken the current estimate of the characters per token of the model
+     * @return the token count ollama reported for this message or an estimate, which is cached until the text of
+     * the message or the estimate of the characters per token change
+     */
+    public synchronized int getTokenCount(double charsPerToken) {
+        int length = chatMessage.getResponse() == null ? 0 : chatMessage.getResponse().length();
+        if (length == tokenCountLength && (tokenCountReported || charsPerToken == tokenCountCharsPerToken))
+            return tokenCount;
+        tokenCount = (int) Math.ceil(length / charsPerToken);
+        tokenCountLength = length;
+        tokenCountCharsPerToken = charsPerToken;
+        tokenCountReported = false;
+        return tokenCount;
+    }
+
+    /**
+     * Sets the exact token count ollama reported for the current text of this message.
+     */
+    public synchronized void setTokenCount(int tokenCount) {
+        this.tokenCount = tokenCount;
+        this.tokenCountLength = chatMessage.getResponse() == null ? 0 : chatMessage.getResponse().length();
+        this.tokenCountReported = true;
+    }
+
     @Override
     public boolean equals(Object object) {
         if (this == object) return true;
@@ -4,6 +4,8 @@ import java.util.Comparator;
 import java.util.Objects;
 
 public class LlmModelCardJson extends AbstractJson implements Comparable<LlmModelCardJson> {
+    public static final String DEFAULT_KEEP_ALIVE = "30m";
+    public static final int DEFAULT_CONTEXT_TOKEN_BUDGET = 3072;
     private String modelCardName = "";
     private String llmModel = "";
     private float temperature = 1.0f;
@@ -13,6 +15,25 @@ public class LlmModelCardJson extends AbstractJson implements Comparable<LlmMode
     private String txt2ImgModel = "";
     private String txt2ImgModelStyle = "";
     private String ttsModel = "en_GB_alba-medium";
+    /**
+     * faster voice in the same language, spoken while the synthesis with the tts model falls behind the answer. No
+     * fallback, if null.
+     */
+    private String ttsFallbackModel = null;
+    /**
+     * how long ollama keeps the model in memory after a request, like "30m", "2h" or "-1" for forever
+     */
+    private String keepAlive = DEFAULT_KEEP_ALIVE;
+    /**
+     * maximum amount of tokens of the chat history sent to the model. Must leave room for the answer in the context
+     * of the model, the default fits the 4096 tokens context ollama uses by default.
+     */
+    private int contextTokenBudget = DEFAULT_CONTEXT_TOKEN_BUDGET;
+    /**
+     * create the prompt for a picture while the answer is still streaming, instead of after it. Needs an ollama server
+     * answering two requests in parallel (OLLAMA_NUM_PARALLEL of 2 or more), otherwise the requests just queue.
+     */
+    private boolean speculativeImagePrompt = false;
 
     public String getLlmModel() {
         return llmModel;
@@ -112,4 +133,40 @@ public class LlmModelCardJson extends AbstractJson implements Comparable<LlmMode
         this.ttsModel = ttsModel;
         return this;
     }
+
+    public String getTtsFallbackModel() {
+        return ttsFallbackModel;
+    }
+
+    public LlmModelCardJson setTtsFallbackModel(String ttsFallbackModel) {
+        this.ttsFallbackModel = ttsFallbackModel;
+        return this;
+    }
+
+    public String getKeepAlive() {
+        return keepAlive;
+    }
+
+    public LlmModelCardJson setKeepAlive(String keepAlive) {
+        this.keepAlive = keepAlive;
+        return this;
+    }
+
+    public int getContextTokenBudget() {
+        return contextTokenBudget;
+    }
+
+    public LlmModelCardJson setContextTokenBudget(int contextTokenBudget) {
+        this.contextTokenBudget = contextTokenBudget;
+        return this;
+    }
+
+    public boolean isSpeculativeImagePrompt() {
+        return speculativeImagePrompt;
+    }
+
+    public LlmModelCardJson setSpeculativeImagePrompt(boolean speculativeImagePrompt) {
+        this.speculativeImagePrompt = speculativeImagePrompt;
+        return this;
+    }
 }
@@ -0,0 +1,61 @@
+package de.vrauchhaupt.chatbotfx.model;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reusable direct buffers of a fixed size for the pcm samples of {@link TtsSentence}s. A sentence takes the chunks it
+ * needs and gives them back as soon as they are played, so a long session keeps reusing the same few chunks instead of
+ * filling the heap with sample arrays.
+ * <p>
+ * At most {@link #MAX_POOLED_CHUNKS} free chunks are kept, more are left to the garbage collector.
+ */
+public class PcmChunkPool {
+    public static final int CHUNK_SIZE = 16 * 1024;
+    private static final int MAX_POOLED_CHUNKS = 256;
+    private static final PcmChunkPool INSTANCE = new PcmChunkPool();
+
+    private final Queue<ByteBuffer> freeChunks = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger freeChunkCount = new AtomicInteger(0);
+    private final AtomicLong allocatedChunks = new AtomicLong(0);
+
+    public static PcmChunkPool instance() {
+        return INSTANCE;
+    }
+
+    /**
+     * @return an empty chunk of {@link #CHUNK_SIZE} bytes
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer chunk = freeChunks.poll();
+        if (chunk != null) {
+            freeChunkCount.decrementAndGet();
+            return chunk;
+        }
+        allocatedChunks.incrementAndGet();
+        return ByteBuffer.allocateDirect(CHUNK_SIZE);
+    }
+
+    public void release(ByteBuffer chunk) {
+        if (freeChunkCount.incrementAndGet() > MAX_POOLED_CHUNKS) {
+            freeChunkCount.decrementAndGet();
+            return;
+        }
+        chunk.clear();
+        freeChunks.add(chunk);
+    }
+
+    /**
+     * @return the amount of chunks allocated since the start, which stays flat, while the chunks are reused
+     */
+    public long getAllocatedChunks() {
+        return allocatedChunks.get();
+    }
+
+    public int getFreeChunks() {
+        return freeChunkCount.get();
+    }
+}
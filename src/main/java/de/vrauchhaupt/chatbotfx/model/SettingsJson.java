@@ -1,5 +1,8 @@
 package de.vrauchhaupt.chatbotfx.model;
 
+import java.util.ArrayList;
+import java.util.List;
+
 public class SettingsJson extends AbstractJson {
     private String pathToPiper;
     private String pathToLlmModelCards;
@@ -7,7 +10,15 @@ public class SettingsJson extends AbstractJson {
     private String pathToTtsModelFiles;
     private String selectedLlmModelCard;
     private String ollamaHost;
+    private List<String> additionalOllamaHosts = new ArrayList<>();
     private int messagesToStripForLlm;
+    private int ttsWorkers = 2;
+    private int audioBufferMillis = 250;
+    private int ttsCacheMegabytes = 256;
+    private int ttsQueueCapacity = 8;
+    private int ttsSynthesisThreads = 2;
+    private boolean ttsInProcess = false;
+    private String espeakCommand;
 
     public String getPathToPiper() {
         return pathToPiper;
@@ -63,6 +74,15 @@ public class SettingsJson extends AbstractJson {
         return this;
     }
 
+    public List<String> getAdditionalOllamaHosts() {
+        return additionalOllamaHosts;
+    }
+
+    public SettingsJson setAdditionalOllamaHosts(List<String> additionalOllamaHosts) {
+        this.additionalOllamaHosts = additionalOllamaHosts;
+        return this;
+    }
+
     public int getMessagesToStripForLlm() {
         return messagesToStripForLlm;
     }
@@ -71,4 +91,67 @@ public class SettingsJson extends AbstractJson {
         this.messagesToStripForLlm = messagesToStripForLlm;
         return this;
     }
+
+    public int getTtsWorkers() {
+        return ttsWorkers;
+    }
+
+    public SettingsJson setTtsWorkers(int ttsWorkers) {
+        this.ttsWorkers = ttsWorkers;
+        return this;
+    }
+
+    public int getAudioBufferMillis() {
+        return audioBufferMillis;
+    }
+
+    public SettingsJson setAudioBufferMillis(int audioBufferMillis) {
+        this.audioBufferMillis = audioBufferMillis;
+        return this;
+    }
+
+    public int getTtsCacheMegabytes() {
+        return ttsCacheMegabytes;
+    }
+
+    public SettingsJson setTtsCacheMegabytes(int ttsCacheMegabytes) {
+        this.ttsCacheMegabytes = ttsCacheMegabytes;
+        return this;
+    }
+
+    public int getTtsQueueCapacity() {
+        return ttsQueueCapacity;
+    }
+
+    public SettingsJson setTtsQueueCapacity(int ttsQueueCapacity) {
+        this.ttsQueueCapacity = ttsQueueCapacity;
+        return this;
+    }
+
+    public int getTtsSynthesisThreads() {
+        return ttsSynthesisThreads;
+    }
+
+    public SettingsJson setTtsSynthesisThreads(int ttsSynthesisThreads) {
+        this.ttsSynthesisThreads = ttsSynthesisThreads;
+        return this;
+    }
+
+    public boolean isTtsInProcess() {
+        return ttsInProcess;
+    }
+
+    public SettingsJson setTtsInProcess(boolean ttsInProcess) {
+        this.ttsInProcess = ttsInProcess;
+        return this;
+    }
+
+    public String getEspeakCommand() {
+        return espeakCommand;
+    }
+
+    public SettingsJson setEspeakCommand(String espeakCommand) {
+        this.espeakCommand = espeakCommand;
+        return this;
+    }
 }
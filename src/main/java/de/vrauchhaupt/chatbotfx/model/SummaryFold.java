@@ -0,0 +1,46 @@
+package de.vrauchhaupt.chatbotfx.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Snapshot of the messages one summarization run folds into the rolling summary. An edit replaces a message of the
+ * history by a new one, so {@link ChatViewModel#applySummaryFold(SummaryFold, String)} can check, that none of the
+ * messages was edited or deleted in the meantime.
+ */
+public class SummaryFold {
+    private final IndexedOllamaChatMessage systemPrompt;
+    private final IndexedOllamaChatMessage previousSummary;
+    private final List<IndexedOllamaChatMessage> agedOutMessages;
+
+    public SummaryFold(IndexedOllamaChatMessage systemPrompt,
+                       IndexedOllamaChatMessage previousSummary,
+                       List<IndexedOllamaChatMessage> agedOutMessages) {
+        this.systemPrompt = systemPrompt;
+        this.previousSummary = previousSummary;
+        this.agedOutMessages = List.copyOf(agedOutMessages);
+    }
+
+    public IndexedOllamaChatMessage getSystemPrompt() {
+        return systemPrompt;
+    }
+
+    public IndexedOllamaChatMessage getPreviousSummary() {
+        return previousSummary;
+    }
+
+    public List<IndexedOllamaChatMessage> getAgedOutMessages() {
+        return agedOutMessages;
+    }
+
+    /**
+     * @return the previous summary, if there is one, and the aged out messages. The new summary replaces all of them.
+     */
+    public List<IndexedOllamaChatMessage> getReplacedMessages() {
+        List<IndexedOllamaChatMessage> returnValue = new ArrayList<>(agedOutMessages.size() + 1);
+        if (previousSummary != null)
+            returnValue.add(previousSummary);
+        returnValue.addAll(agedOutMessages);
+        return returnValue;
+    }
+}
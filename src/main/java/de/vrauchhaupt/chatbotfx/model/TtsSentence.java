@@ -1,18 +1,54 @@
 package de.vrauchhaupt.chatbotfx.model;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import javax.sound.sampled.AudioFormat;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * One sentence to speak and the channel its pcm samples are streamed through, from piper to the sound output. The
+ * playing starts with the first samples, not after the whole sentence was synthesized.
+ * <p>
+ * The channel holds at most {@link #MAX_BUFFERED_BYTES}, a writer ahead of the playing waits for free space.
+ * {@link #close()} marks the end of the sentence, {@link #abort()} drops it and releases waiting writers and readers.
+ * <p>
+ * The samples are kept in chunks of the {@link PcmChunkPool}. A chunk goes back to the pool as soon as it is read
+ * completely, the last one when the sentence was spoken or aborted.
+ */
 public class TtsSentence {
+    /**
+     * about 10 seconds of speech of a medium piper voice
+     */
+    private static final int MAX_BUFFERED_BYTES = 512 * 1024;
+
     private final String text;
-    private final ByteArrayOutputStream byteBuffer = new ByteArrayOutputStream();
-    private final AtomicBoolean allBytesCaught = new AtomicBoolean(false);
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private final Condition spokenOrAborted = lock.newCondition();
+    /**
+     * the position of a chunk is where the writer continues, the reader continues at {@link #headReadIndex}
+     */
+    private final ArrayDeque<ByteBuffer> chunks = new ArrayDeque<>();
     private final AtomicBoolean spoken = new AtomicBoolean(false);
+    private final List<Runnable> onSpoken = new CopyOnWriteArrayList<>();
+    private final List<Runnable> onAborted = new CopyOnWriteArrayList<>();
     private final int chatMessageIndex;
+    private int bufferedBytes = 0;
+    private int headReadIndex = 0;
+    private boolean closed = false;
+    private boolean aborted = false;
+    private volatile AudioFormat audioFormat = null;
+    private volatile String cacheKey = null;
+    private volatile byte[] cachedPcm = null;
+    private volatile long queuedAtNanos = 0;
 
     public TtsSentence(String text, int chatMessageIndex) {
         this.text = text;
@@ -23,27 +59,241 @@ public class TtsSentence {
         return text;
     }
 
+    /**
+     * Adds samples to the channel, waiting for the playing to make room, if the channel is full. Returns early without
+     * adding the rest, if the sentence is aborted or the thread is interrupted.
+     */
     public void addToByteBuffer(byte[] b, int off, int len) {
-        byteBuffer.write(b, off, len);
+        lock.lock();
+        try {
+            while (len > 0 && !aborted && !closed) {
+                while (bufferedBytes >= MAX_BUFFERED_BYTES && !aborted)
+                    notFull.await();
+                if (aborted)
+                    return;
+                ByteBuffer tail = chunks.peekLast();
+                if (tail == null || !tail.hasRemaining()) {
+                    tail = PcmChunkPool.instance().acquire();
+                    chunks.add(tail);
+                }
+                int length = Math.min(len, Math.min(tail.remaining(), MAX_BUFFERED_BYTES - bufferedBytes));
+                tail.put(b, off, length);
+                bufferedBytes += length;
+                off += length;
+                len -= length;
+                notEmpty.signalAll();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            lock.unlock();
+        }
     }
 
-    public void setAllBytesCaught(boolean allBytesCaught) {
-        this.allBytesCaught.set(allBytesCaught);
+    /**
+     * All samples of the sentence are added.
+     */
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
     }
 
+    /**
+     * Drops all samples, the reader gets the end of the stream and writers stop adding.
+     */
+    public void abort() {
+        boolean firstAbort;
+        lock.lock();
+        try {
+            firstAbort = !aborted;
+            aborted = true;
+            releaseChunks();
+            notEmpty.signalAll();
+            notFull.signalAll();
+            spokenOrAborted.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        if (firstAbort)
+            onAborted.forEach(Runnable::run);
+    }
+
+    /**
+     * @return the samples as they arrive. Reading blocks until samples are there or the sentence is closed.
+     */
     public InputStream getBytesAsInputStream() {
+        return new InputStream() {
+            @Override
+            public int read() {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                if (len == 0)
+                    return 0;
+                return takeBytes(b, off, len);
+            }
+        };
+    }
+
+    /**
+     * Waits at most the given time for samples to read.
+     *
+     * @return true, if reading does not block anymore, because there are samples or the sentence is closed or aborted
+     */
+    public boolean awaitSamples(long millis) {
+        lock.lock();
         try {
-            while ( !this.allBytesCaught.get())
-                Thread.sleep(100);
+            long nanos = TimeUnit.MILLISECONDS.toNanos(millis);
+            while (bufferedBytes == 0 && !closed && !aborted) {
+                if (nanos <= 0)
+                    return false;
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return true;
         } catch (InterruptedException e) {
-            throw new RuntimeException(e);
+            Thread.currentThread().interrupt();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Copies samples of the first chunk straight into the buffer of the reader.
+     */
+    private int takeBytes(byte[] b, int off, int len) {
+        lock.lock();
+        try {
+            while (bufferedBytes == 0 && !closed && !aborted)
+                notEmpty.await();
+            if (bufferedBytes == 0)
+                return -1;
+            ByteBuffer head = chunks.peek();
+            int length = Math.min(len, head.position() - headReadIndex);
+            head.get(headReadIndex, b, off, length);
+            headReadIndex += length;
+            bufferedBytes -= length;
+            // the writer may still continue in a last chunk, which is not full
+            if (headReadIndex == head.position() && (!head.hasRemaining() || chunks.size() > 1)) {
+                PcmChunkPool.instance().release(chunks.poll());
+                headReadIndex = 0;
+            }
+            notFull.signalAll();
+            return length;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return -1;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void releaseChunks() {
+        chunks.forEach(PcmChunkPool.instance()::release);
+        chunks.clear();
+        bufferedBytes = 0;
+        headReadIndex = 0;
+    }
+
+    /**
+     * @return the format of the samples, given by the voice model synthesizing the sentence
+     */
+    public AudioFormat getAudioFormat() {
+        return audioFormat;
+    }
+
+    public void setAudioFormat(AudioFormat audioFormat) {
+        this.audioFormat = audioFormat;
+    }
+
+    /**
+     * @return the key of the sentence in the tts cache, null, if the cache is not used
+     */
+    public String getCacheKey() {
+        return cacheKey;
+    }
+
+    public void setCacheKey(String cacheKey) {
+        this.cacheKey = cacheKey;
+    }
+
+    /**
+     * @return the samples found in the tts cache, null, if the sentence must be synthesized
+     */
+    public byte[] getCachedPcm() {
+        return cachedPcm;
+    }
+
+    public void setCachedPcm(byte[] cachedPcm) {
+        this.cachedPcm = cachedPcm;
+    }
+
+    /**
+     * @return the {@link System#nanoTime()} the sentence was queued for synthesis
+     */
+    public long getQueuedAtNanos() {
+        return queuedAtNanos;
+    }
+
+    public void setQueuedAtNanos(long queuedAtNanos) {
+        this.queuedAtNanos = queuedAtNanos;
+    }
+
+    public boolean isAborted() {
+        lock.lock();
+        try {
+            return aborted;
+        } finally {
+            lock.unlock();
         }
-        byte[] byteArray = byteBuffer.toByteArray();
-        return new ByteArrayInputStream(byteArray);
+    }
+
+    /**
+     * @param action runs once, when the sentence was spoken. Used by sentences merged into or split from this one.
+     */
+    public void addOnSpoken(Runnable action) {
+        onSpoken.add(action);
+    }
+
+    /**
+     * @param action runs once, when the sentence is aborted. Used by sentences merged into or split from this one.
+     */
+    public void addOnAborted(Runnable action) {
+        onAborted.add(action);
     }
 
     public void informSpoken() {
-        spoken.set(true);
+        if (spoken.getAndSet(true))
+            return;
+        lock.lock();
+        try {
+            releaseChunks();
+            spokenOrAborted.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        onSpoken.forEach(Runnable::run);
+    }
+
+    /**
+     * Waits, until the sentence was spoken or aborted.
+     */
+    public void awaitSpoken() throws InterruptedException {
+        lock.lock();
+        try {
+            while (!spoken.get() && !aborted)
+                spokenOrAborted.await();
+        } finally {
+            lock.unlock();
+        }
     }
 
     public boolean wasSpoken() {
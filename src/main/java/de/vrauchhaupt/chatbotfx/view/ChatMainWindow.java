@@ -80,7 +80,6 @@ public class ChatMainWindow implements IPrintFunction, IChatBoxViewComponent {
 
     private DisplayRole currentDisplayRole = null;
     private Transition loadingTransition = null;
-    private boolean oldJobInProgress = false;
     private boolean blocking = false;
     private final ChangeListener<LlmModelCardJson> modelCardSelectionChangeListener = (observable, oldValue, newValue) -> modelChanged(newValue);
 
@@ -156,7 +155,9 @@ public class ChatMainWindow implements IPrintFunction, IChatBoxViewComponent {
         menuItemTts.selectedProperty().bindBidirectional(SettingsManager.instance().ttsGenerationProperty());
         menuItemTxt2Img.selectedProperty().bindBidirectional(SettingsManager.instance().text2ImageGenerationProperty());
 
-        ThreadManager.instance().startEndlessThread("Block/Unblock UI", this::controllWorkingInProgress);
+        WorkTracker.instance().busyProperty().addListener((observable, oldValue, newValue) -> setEnabled(!newValue));
+        if (WorkTracker.instance().isBusy())
+            setEnabled(false);
 
 
     }
@@ -298,45 +299,29 @@ public class ChatMainWindow implements IPrintFunction, IChatBoxViewComponent {
         if (blocking) {
             throw new RuntimeException("Already blocked");
         }
-        if (oldJobInProgress) {
+        if (WorkTracker.instance().isBusy()) {
             throw new RuntimeException("Another job is in progress");
         }
         blocking = true;
+        WorkTracker.WorkTicket ticket = WorkTracker.instance().begin(action);
         Platform.runLater(() -> {
             textFieldSystemInput.setText("");
             textFieldUserInput.setText("");
             textFieldUserInput.requestFocus();
-            new Thread(() -> {
+            ThreadManager.instance().startThread(action, () -> {
                 try {
                     runnable.run();
                 } catch (Exception e) {
                     exceptionHappend("Could not '" + action + "'", e);
                 } finally {
                     blocking = false;
+                    ticket.close();
                 }
-            }).start();
+            }, null);
         });
     }
 
 
-    private void controllWorkingInProgress(ControlledThread controlledThread) {
-        try {
-            Thread.sleep(1200);
-        } catch (InterruptedException e) {
-            return;
-            // nothing to do
-        }
-
-        boolean jobInProgress = blocking ||
-                PrintingManager.instance().isWorking() ||
-                PiperManager.instance().isWorking() ||
-                OllamaManager.instance().isWorking();
-        if (oldJobInProgress == jobInProgress)
-            return;
-        oldJobInProgress = jobInProgress;
-        setEnabled(!jobInProgress);
-    }
-
     public synchronized void setEnabled(boolean enabled) {
         if (!Platform.isFxApplicationThread()) {
             Platform.runLater(() -> setEnabled(enabled));
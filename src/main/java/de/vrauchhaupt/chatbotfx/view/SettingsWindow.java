@@ -17,6 +17,7 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.List;
 import java.util.function.Predicate;
 import java.util.stream.Stream;
 
@@ -201,7 +202,7 @@ public class SettingsWindow {
     }
 
     private void isPathToPiperValid() {
-        validateDirectoryExists(textFieldPathToPiper, warningPathToPiper, x -> "piper.exe".equals(x.getFileName().toString()), "piper.exe");
+        validateDirectoryExists(textFieldPathToPiper, warningPathToPiper, x -> List.of("piper.exe", "piper").contains(x.getFileName().toString()), "piper.exe");
         checkButtonSaveState();
     }
 
@@ -7,6 +7,7 @@ module chatbotfx {
     requires org.jsoup;
     requires org.apache.commons.io;
     requires io.github.ollama4j;
+    requires com.microsoft.onnxruntime;
     requires com.fasterxml.jackson.datatype.jsr310;
     requires com.fasterxml.jackson.databind;
     requires java.desktop;